@@ -0,0 +1,71 @@
+package io.github.givimad.whisperjni.benchmarks;
+
+import io.github.givimad.whisperjni.WhisperJNI;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+/**
+ * The {@link BenchmarkSupport} class loads the library and the benchmark inputs.
+ * <p>
+ * The model and sample paths default to the ones used by the project tests, relative to the benchmarks directory,
+ * and can be changed with the 'whisper.model' and 'whisper.sample' system properties.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+final class BenchmarkSupport {
+    /**
+     * Samples per second expected by whisper.
+     */
+    static final int SAMPLE_RATE = 16000;
+    static final Path MODEL_PATH = Path.of(System.getProperty("whisper.model", "../ggml-tiny.bin"));
+    static final Path SAMPLE_PATH = Path.of(System.getProperty("whisper.sample", "../src/main/native/whisper/samples/jfk.wav"));
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Loads the native library and checks the model is present.
+     *
+     * @return library instance
+     * @throws IOException if the library can not be loaded or the model is missing
+     */
+    static WhisperJNI loadWhisper() throws IOException {
+        if (!MODEL_PATH.toFile().exists()) {
+            throw new IOException("Missing model file: " + MODEL_PATH.toAbsolutePath());
+        }
+        WhisperJNI.loadLibrary();
+        return new WhisperJNI();
+    }
+
+    /**
+     * Reads the benchmark sample.
+     *
+     * @return f32 samples with sample rate 16000
+     * @throws IOException if the file can not be read
+     */
+    static float[] readSamples() throws IOException {
+        // sample is a 16 bit int 16000hz little endian wav file
+        try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(SAMPLE_PATH.toFile())) {
+            ByteBuffer captureBuffer = ByteBuffer.allocate(audioInputStream.available());
+            captureBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (audioInputStream.read(captureBuffer.array()) == -1) {
+                throw new IOException("Empty file");
+            }
+            var shortBuffer = captureBuffer.asShortBuffer();
+            float[] samples = new float[captureBuffer.capacity() / 2];
+            var i = 0;
+            while (shortBuffer.hasRemaining()) {
+                samples[i++] = Float.max(-1f, Float.min(((float) shortBuffer.get()) / (float) Short.MAX_VALUE, 1f));
+            }
+            return samples;
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.givimad.whisperjni.benchmarks;
+
+import io.github.givimad.whisperjni.WhisperContext;
+import io.github.givimad.whisperjni.WhisperContextParams;
+import io.github.givimad.whisperjni.WhisperJNI;
+import io.github.givimad.whisperjni.WhisperState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the model load time and the state allocation time.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InitBenchmark {
+    /**
+     * Whether the model is memory mapped instead of read.
+     */
+    @Param({"false", "true"})
+    public boolean useMmap;
+    private WhisperJNI whisper;
+    private WhisperContextParams contextParams;
+    private WhisperContext sharedCtx;
+
+    @Setup
+    public void setup() throws IOException {
+        whisper = BenchmarkSupport.loadWhisper();
+        contextParams = new WhisperContextParams();
+        contextParams.useGPU = false;
+        contextParams.useMmap = useMmap;
+        sharedCtx = whisper.initNoState(BenchmarkSupport.MODEL_PATH, contextParams);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sharedCtx.close();
+    }
+
+    /**
+     * Loads the model and allocates its default state.
+     */
+    @Benchmark
+    public void init() throws IOException {
+        whisper.init(BenchmarkSupport.MODEL_PATH, contextParams).close();
+    }
+
+    /**
+     * Loads the model without a state.
+     */
+    @Benchmark
+    public void initNoState() throws IOException {
+        whisper.initNoState(BenchmarkSupport.MODEL_PATH, contextParams).close();
+    }
+
+    /**
+     * Allocates a state for an already loaded model.
+     */
+    @Benchmark
+    public void initState() {
+        WhisperState state = whisper.initState(sharedCtx);
+        state.close();
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.givimad.whisperjni.benchmarks;
+
+import io.github.givimad.whisperjni.WhisperCompiledParams;
+import io.github.givimad.whisperjni.WhisperFullParams;
+import io.github.givimad.whisperjni.WhisperJNI;
+import io.github.givimad.whisperjni.WhisperSamplingStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of marshalling a {@link WhisperFullParams} instance into its native struct,
+ * which every full call that takes java params pays.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParamsBenchmark {
+    private WhisperJNI whisper;
+    private WhisperFullParams params;
+    private WhisperFullParams promptParams;
+
+    @Setup
+    public void setup() throws IOException {
+        whisper = BenchmarkSupport.loadWhisper();
+        params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+        promptParams = new WhisperFullParams(WhisperSamplingStrategy.BEAM_SEARCH);
+        promptParams.language = "en";
+        promptParams.initialPrompt = "And so my fellow Americans ask not what your country can do for you.";
+    }
+
+    /**
+     * Java side allocation, the baseline for the marshalling benchmarks.
+     */
+    @Benchmark
+    public WhisperFullParams newParams() {
+        return new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+    }
+
+    /**
+     * Reads all the params fields through jni and releases the native struct.
+     */
+    @Benchmark
+    public void marshalParams() {
+        WhisperCompiledParams compiled = whisper.compileParams(params);
+        compiled.close();
+    }
+
+    /**
+     * Same as {@link #marshalParams()} but with a beam search strategy and an initial prompt, which is copied to the native heap.
+     */
+    @Benchmark
+    public void marshalParamsWithStrings() {
+        WhisperCompiledParams compiled = whisper.compileParams(promptParams);
+        compiled.close();
+    }
+}
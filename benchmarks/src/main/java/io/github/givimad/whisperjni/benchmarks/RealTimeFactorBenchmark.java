@@ -0,0 +1,111 @@
+package io.github.givimad.whisperjni.benchmarks;
+
+import io.github.givimad.whisperjni.WhisperContextParams;
+import io.github.givimad.whisperjni.WhisperEngine;
+import io.github.givimad.whisperjni.WhisperEngineParams;
+import io.github.givimad.whisperjni.WhisperFullParams;
+import io.github.givimad.whisperjni.WhisperJNI;
+import io.github.givimad.whisperjni.WhisperResult;
+import io.github.givimad.whisperjni.WhisperSamplingStrategy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end transcription of the sample at different thread counts and state concurrency levels.
+ * <p>
+ * Each operation transcribes one copy of the sample per state in parallel.
+ * The 'audioSeconds' secondary result is the transcribed audio per wall clock second,
+ * the inverse of the real time factor, so a value of 10 means a real time factor of 0.1.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RealTimeFactorBenchmark {
+    /**
+     * Threads used by each transcription.
+     */
+    @Param({"1", "2", "4"})
+    public int nThreads;
+    /**
+     * Number of states transcribing at the same time.
+     */
+    @Param({"1", "2", "4"})
+    public int nStates;
+    private WhisperEngine engine;
+    private WhisperFullParams params;
+    private float[] samples;
+
+    /**
+     * Counts the transcribed audio.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class AudioCounter {
+        /**
+         * Seconds of audio transcribed.
+         */
+        public double audioSeconds;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            audioSeconds = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        WhisperJNI whisper = BenchmarkSupport.loadWhisper();
+        samples = BenchmarkSupport.readSamples();
+        var engineParams = new WhisperEngineParams();
+        engineParams.nStates = nStates;
+        // the thread count under test is set in the params
+        engineParams.partitionThreads = false;
+        engineParams.contextParams = new WhisperContextParams();
+        engineParams.contextParams.useGPU = false;
+        engine = whisper.initEngine(BenchmarkSupport.MODEL_PATH, engineParams);
+        params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+        params.nThreads = nThreads;
+        params.printProgress = false;
+        params.printTimestamps = false;
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Benchmark
+    public void transcribe(AudioCounter counter) throws InterruptedException, ExecutionException {
+        var results = new ArrayList<CompletableFuture<WhisperResult>>(nStates);
+        for (int i = 0; i < nStates; i++) {
+            results.add(engine.transcribe(params, samples, samples.length));
+        }
+        for (var result : results) {
+            result.get();
+        }
+        counter.audioSeconds += (double) samples.length * nStates / BenchmarkSupport.SAMPLE_RATE;
+    }
+}
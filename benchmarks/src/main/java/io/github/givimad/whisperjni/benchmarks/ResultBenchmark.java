@@ -0,0 +1,86 @@
+package io.github.givimad.whisperjni.benchmarks;
+
+import io.github.givimad.whisperjni.WhisperContext;
+import io.github.givimad.whisperjni.WhisperFullParams;
+import io.github.givimad.whisperjni.WhisperJNI;
+import io.github.givimad.whisperjni.WhisperResult;
+import io.github.givimad.whisperjni.WhisperSamplingStrategy;
+import io.github.givimad.whisperjni.WhisperState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading a transcription segment by segment, one jni call per field,
+ * against reading it with a single {@link WhisperJNI#fullGetResultFromState} call.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultBenchmark {
+    /**
+     * Times the sample is repeated, longer audio produces more segments.
+     */
+    @Param({"1", "4"})
+    public int repeat;
+    private WhisperJNI whisper;
+    private WhisperContext ctx;
+    private WhisperState state;
+
+    @Setup
+    public void setup() throws IOException {
+        whisper = BenchmarkSupport.loadWhisper();
+        float[] sample = BenchmarkSupport.readSamples();
+        float[] samples = new float[sample.length * repeat];
+        for (int i = 0; i < repeat; i++) {
+            System.arraycopy(sample, 0, samples, i * sample.length, sample.length);
+        }
+        ctx = whisper.initNoState(BenchmarkSupport.MODEL_PATH);
+        state = whisper.initState(ctx);
+        var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+        params.printProgress = false;
+        params.printTimestamps = false;
+        if (whisper.fullWithState(ctx, state, params, samples, samples.length) != 0) {
+            throw new IOException("Transcription failed");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        state.close();
+        ctx.close();
+    }
+
+    @Benchmark
+    public void perSegment(Blackhole blackhole) {
+        int nSegments = whisper.fullNSegmentsFromState(state);
+        for (int i = 0; i < nSegments; i++) {
+            blackhole.consume(whisper.fullGetSegmentTimestamp0FromState(state, i));
+            blackhole.consume(whisper.fullGetSegmentTimestamp1FromState(state, i));
+            blackhole.consume(whisper.fullGetSegmentTextFromState(state, i));
+        }
+    }
+
+    @Benchmark
+    public WhisperResult bulk() {
+        return whisper.fullGetResultFromState(state);
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.givimad.whisperjni.benchmarks;
+
+import io.github.givimad.whisperjni.WhisperContext;
+import io.github.givimad.whisperjni.WhisperFullParams;
+import io.github.givimad.whisperjni.WhisperJNI;
+import io.github.givimad.whisperjni.WhisperSamplingStrategy;
+import io.github.givimad.whisperjni.WhisperState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares passing the samples as a float array, which the jvm may copy, against a direct buffer read in place.
+ * <p>
+ * The encoder is skipped through the encoder begin callback,
+ * so the measured time is the sample transfer plus the mel spectrogram and not the transcription.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SamplesBenchmark {
+    /**
+     * Number of samples passed, one second and the full sample.
+     */
+    @Param({"16000", "176000"})
+    public int numSamples;
+    private WhisperJNI whisper;
+    private WhisperContext ctx;
+    private WhisperState state;
+    private WhisperFullParams params;
+    private float[] samples;
+    private FloatBuffer directSamples;
+
+    @Setup
+    public void setup() throws IOException {
+        whisper = BenchmarkSupport.loadWhisper();
+        float[] sample = BenchmarkSupport.readSamples();
+        samples = new float[numSamples];
+        System.arraycopy(sample, 0, samples, 0, Math.min(numSamples, sample.length));
+        directSamples = ByteBuffer.allocateDirect(numSamples * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        directSamples.put(samples).flip();
+        ctx = whisper.initNoState(BenchmarkSupport.MODEL_PATH);
+        state = whisper.initState(ctx);
+        params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+        params.printProgress = false;
+        params.printTimestamps = false;
+        params.encoderBeginCallback = () -> false;
+    }
+
+    @TearDown
+    public void tearDown() {
+        state.close();
+        ctx.close();
+    }
+
+    @Benchmark
+    public int floatArray() {
+        return whisper.fullWithState(ctx, state, params, samples, numSamples);
+    }
+
+    @Benchmark
+    public int directBuffer() {
+        return whisper.fullWithState(ctx, state, params, directSamples, numSamples);
+    }
+}
@@ -4,11 +4,20 @@ LIB_SRC=src/main/java/io/github/givimad/whisperjni
 javac -h src/main/native \
 $LIB_SRC/internal/LibraryUtils.java \
 $LIB_SRC/WhisperContextParams.java \
+$LIB_SRC/WhisperCompiledParams.java \
 $LIB_SRC/WhisperContext.java \
+$LIB_SRC/WhisperEngine.java \
+$LIB_SRC/WhisperEngineParams.java \
 $LIB_SRC/WhisperGrammar.java \
+$LIB_SRC/WhisperPCMFormat.java \
 $LIB_SRC/WhisperSamplingStrategy.java \
 $LIB_SRC/WhisperFullParams.java \
+$LIB_SRC/WhisperResult.java \
+$LIB_SRC/WhisperSegment.java \
 $LIB_SRC/WhisperState.java \
+$LIB_SRC/WhisperStreamParams.java \
+$LIB_SRC/WhisperStreamSession.java \
+$LIB_SRC/WhisperTokens.java \
 $LIB_SRC/WhisperJNI.java
 
 rm -rf $LIB_SRC/*.class $LIB_SRC/internal/*.class
@@ -0,0 +1,264 @@
+package io.github.givimad.whisperjni;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * The {@link WhisperBatch} class transcribes many short clips together, packing them in a single whisper window.
+ * <p>
+ * whisper pads its input to a 30 seconds window, so a clip of a few seconds costs about the same as a full window.
+ * Clips are packed in order, separated by a short silence, until the window is full, each pack is transcribed in a single call
+ * and its segments are assigned back to the clips, with timestamps relative to the clip start.
+ * A segment spanning several clips is split at its token boundaries using the token timestamps,
+ * each token goes to the clip nearest to it. Segments that only cover the silence between clips are discarded.
+ * <p>
+ * Clips transcribed together share the decoder context, so the text of a clip can influence the next ones in the pack.
+ * Clips longer than the window are transcribed alone.
+ * Instances are thread safe.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperBatch {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLES_PER_TIMESTAMP = SAMPLE_RATE / 100;
+    private final int windowSamples;
+    private final int gapSamples;
+
+    /**
+     * Creates a new clip packer.
+     *
+     * @param params batch params, defaults are used if null.
+     */
+    public WhisperBatch(WhisperBatchParams params) {
+        if (params == null) {
+            params = new WhisperBatchParams();
+        }
+        if (params.windowMs <= 0 || params.gapMs < 0) {
+            throw new IllegalArgumentException("windowMs should be greater than zero and gapMs should not be negative");
+        }
+        this.windowSamples = msToSamples(params.windowMs);
+        this.gapSamples = msToSamples(params.gapMs);
+    }
+
+    /**
+     * Transcribes the clips packing them in as few calls as possible.
+     *
+     * @param whisper library instance.
+     * @param context the {@link WhisperContext} used to transcribe.
+     * @param state   the {@link WhisperState} used to transcribe.
+     * @param params  a {@link WhisperFullParams} instance with the desired configuration, a copy is taken.
+     * @param clips   the clips audio samples (f32 encoded samples with sample rate 16000).
+     * @return a {@link WhisperResult} for each clip, in the same order.
+     * @throws IOException if the transcription fails.
+     */
+    public List<WhisperResult> fullWithState(WhisperJNI whisper, WhisperContext context, WhisperState state, WhisperFullParams params, List<float[]> clips) throws IOException {
+        WhisperFullParams packParams = packParams(params);
+        var results = new ArrayList<WhisperResult>(clips.size());
+        for (Pack pack : pack(clips)) {
+            results.addAll(pack.fullWithState(whisper, context, state, packParams, clips));
+        }
+        return results;
+    }
+
+    /**
+     * Groups consecutive clips in packs that fit in the window.
+     *
+     * @param clips the clips audio samples.
+     * @return the packs, in clip order.
+     */
+    List<Pack> pack(List<float[]> clips) {
+        var packs = new ArrayList<Pack>();
+        int first = 0;
+        int length = 0;
+        for (int i = 0; i < clips.size(); i++) {
+            int clipLength = clips.get(i).length;
+            if (i > first && length + gapSamples + clipLength > windowSamples) {
+                packs.add(new Pack(clips, first, i));
+                first = i;
+                length = 0;
+            }
+            length += (i > first ? gapSamples : 0) + clipLength;
+        }
+        if (first < clips.size()) {
+            packs.add(new Pack(clips, first, clips.size()));
+        }
+        return packs;
+    }
+
+    /**
+     * Copies the params with the options needed to split the pack result.
+     *
+     * @param params the user params.
+     * @return params to transcribe the packs.
+     */
+    static WhisperFullParams packParams(WhisperFullParams params) {
+        var packParams = new WhisperFullParams(params);
+        // segments are assigned to clips by their timestamps, and split at their token timestamps
+        packParams.noTimestamps = false;
+        packParams.tokenTimestamps = true;
+        packParams.singleSegment = false;
+        // states may be reused, the text of unrelated audio should not be used as prompt
+        packParams.noContext = true;
+        return packParams;
+    }
+
+    /**
+     * The {@link Pack} class represents a range of clips transcribed together.
+     */
+    class Pack {
+        private final int first;
+        private final int[] starts;
+        private final int[] lengths;
+        private final int length;
+
+        private Pack(List<float[]> clips, int first, int end) {
+            this.first = first;
+            this.starts = new int[end - first];
+            this.lengths = new int[end - first];
+            int position = 0;
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = position;
+                lengths[i] = clips.get(first + i).length;
+                position += lengths[i] + (i + 1 < starts.length ? gapSamples : 0);
+            }
+            this.length = position;
+        }
+
+        /**
+         * Transcribes the pack clips in a single call.
+         *
+         * @param whisper library instance.
+         * @param context the {@link WhisperContext} used to transcribe.
+         * @param state   the {@link WhisperState} used to transcribe.
+         * @param params  params returned by {@link #packParams(WhisperFullParams)}.
+         * @param clips   all the clips.
+         * @return a result for each clip of the pack.
+         * @throws IOException if the transcription fails.
+         */
+        List<WhisperResult> fullWithState(WhisperJNI whisper, WhisperContext context, WhisperState state, WhisperFullParams params, List<float[]> clips) throws IOException {
+            if (length == 0) {
+                // whisper reuses the state spectrogram when there are no samples
+                return split(WhisperResult.empty(), null, 0, null);
+            }
+            float[] samples = new float[length];
+            for (int i = 0; i < starts.length; i++) {
+                System.arraycopy(clips.get(first + i), 0, samples, starts[i], lengths[i]);
+            }
+            assertResult(whisper.fullWithState(context, state, params, samples, length));
+            return split(whisper.fullGetResultFromState(state), whisper.fullGetTokensFromState(state), whisper.tokenEot(context),
+                    token -> whisper.tokenToBytes(context, token));
+        }
+
+        /**
+         * Assigns the pack segments to the clips.
+         *
+         * @param result     the pack transcription.
+         * @param tokens     the pack tokens, with their timestamps.
+         * @param eot        the end of text token id, greater or equal ids are not part of the text.
+         * @param tokenBytes gets the text bytes of a token.
+         * @return a result for each clip of the pack.
+         */
+        List<WhisperResult> split(WhisperResult result, WhisperTokens tokens, int eot, IntFunction<byte[]> tokenBytes) {
+            var clipSegments = new ArrayList<List<WhisperSegment>>(starts.length);
+            for (int i = 0; i < starts.length; i++) {
+                clipSegments.add(new ArrayList<>());
+            }
+            for (int segment = 0; segment < result.getNSegments(); segment++) {
+                long start = result.getSegmentTimestamp0(segment) * SAMPLES_PER_TIMESTAMP;
+                long end = Math.max(start + 1, result.getSegmentTimestamp1(segment) * SAMPLES_PER_TIMESTAMP);
+                int clip = nearestClip(start, end);
+                if (overlap(clip, start, end) <= 0) {
+                    // only covers the silence between clips
+                    continue;
+                }
+                int tokenStart = tokens.getSegmentTokenStart(segment);
+                int tokenEnd = tokenStart + tokens.getSegmentNTokens(segment);
+                int[] tokenClips = new int[tokenEnd - tokenStart];
+                boolean spansClips = false;
+                int textClip = -1;
+                for (int token = tokenStart; token < tokenEnd; token++) {
+                    int tokenClip = -1;
+                    if (tokens.getTokenId(token) < eot) {
+                        long tokenStartSample = tokens.getTokenTimestamp0(token) * SAMPLES_PER_TIMESTAMP;
+                        long tokenEndSample = Math.max(tokenStartSample + 1, tokens.getTokenTimestamp1(token) * SAMPLES_PER_TIMESTAMP);
+                        tokenClip = nearestClip(tokenStartSample, tokenEndSample);
+                        spansClips |= textClip != -1 && tokenClip != textClip;
+                        textClip = tokenClip;
+                    }
+                    tokenClips[token - tokenStart] = tokenClip;
+                }
+                if (!spansClips) {
+                    addSegment(clipSegments, textClip != -1 ? textClip : clip, start, end, result.getSegmentText(segment));
+                    continue;
+                }
+                var text = new ByteArrayOutputStream();
+                int partClip = -1;
+                long partStart = 0;
+                long partEnd = 0;
+                for (int token = tokenStart; token < tokenEnd; token++) {
+                    int tokenClip = tokenClips[token - tokenStart];
+                    if (tokenClip == -1) {
+                        continue;
+                    }
+                    if (tokenClip != partClip) {
+                        if (partClip != -1) {
+                            addSegment(clipSegments, partClip, partStart, partEnd, text.toString(StandardCharsets.UTF_8));
+                            text.reset();
+                        }
+                        partClip = tokenClip;
+                        partStart = tokens.getTokenTimestamp0(token) * SAMPLES_PER_TIMESTAMP;
+                    }
+                    partEnd = tokens.getTokenTimestamp1(token) * SAMPLES_PER_TIMESTAMP;
+                    text.writeBytes(tokenBytes.apply(tokens.getTokenId(token)));
+                }
+                addSegment(clipSegments, partClip, partStart, partEnd, text.toString(StandardCharsets.UTF_8));
+            }
+            var results = new ArrayList<WhisperResult>(starts.length);
+            for (var segments : clipSegments) {
+                results.add(WhisperResult.of(segments));
+            }
+            return results;
+        }
+
+        /**
+         * Finds the clip that overlaps a pack range the most, or the closest one if none overlaps it.
+         */
+        private int nearestClip(long start, long end) {
+            int clip = 0;
+            for (int i = 1; i < starts.length; i++) {
+                if (overlap(i, start, end) > overlap(clip, start, end)) {
+                    clip = i;
+                }
+            }
+            return clip;
+        }
+
+        /**
+         * Gets the samples a pack range overlaps a clip, or minus its distance to the clip if they don't overlap.
+         */
+        private long overlap(int clip, long start, long end) {
+            return Math.min(end, starts[clip] + lengths[clip]) - Math.max(start, starts[clip]);
+        }
+
+        private void addSegment(List<List<WhisperSegment>> clipSegments, int clip, long start, long end, String text) {
+            long clipEnd = lengths[clip] / SAMPLES_PER_TIMESTAMP;
+            long segmentStart = Math.max(0, Math.min(clipEnd, (start - starts[clip]) / SAMPLES_PER_TIMESTAMP));
+            long segmentEnd = Math.max(segmentStart, Math.min(clipEnd, (end - starts[clip]) / SAMPLES_PER_TIMESTAMP));
+            clipSegments.get(clip).add(new WhisperSegment(segmentStart, segmentEnd, text));
+        }
+    }
+
+    private static void assertResult(int result) throws IOException {
+        if (result != 0) {
+            throw new IOException("Transcription failed with code " + result);
+        }
+    }
+
+    private static int msToSamples(int ms) {
+        return (int) ((long) ms * SAMPLE_RATE / 1000);
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperBatchParams} class contains the {@link WhisperBatch} params.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperBatchParams {
+    /**
+     * Max length in milliseconds of the packed audio, a bit under the 30 seconds whisper window
+     * so each pack is transcribed in a single window.
+     */
+    public int windowMs = 28000;
+    /**
+     * Silence in milliseconds inserted between the clips, long enough for whisper to end its segments between them.
+     */
+    public int gapMs = 1000;
+
+    /**
+     * Public constructor.
+     */
+    public WhisperBatchParams() {
+
+    }
+}
@@ -0,0 +1,34 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperCompiledParams} class represents a {@link WhisperFullParams} instance already converted
+ * into its native whisper.cpp representation, so it can be reused across calls without reading the java object again.
+ * <p>
+ * Its values are taken when it's compiled, later changes on the source {@link WhisperFullParams} are not applied.
+ * The grammar is copied, so the {@link WhisperGrammar} can be released after compiling the params.
+ * The callbacks are referenced until the compiled params are released.
+ * <p>
+ * You need to dispose the native memory for its instances by calling {@link #close}
+ * or {@link WhisperJNI#free(WhisperCompiledParams)}
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperCompiledParams extends WhisperJNI.WhisperJNIPointer {
+    private final WhisperJNI whisper;
+
+    /**
+     * Internal compiled params constructor
+     *
+     * @param whisper library instance
+     * @param ref     native pointer identifier
+     */
+    protected WhisperCompiledParams(WhisperJNI whisper, int ref) {
+        super(ref);
+        this.whisper = whisper;
+    }
+
+    @Override
+    public void close() {
+        whisper.free(this);
+    }
+}
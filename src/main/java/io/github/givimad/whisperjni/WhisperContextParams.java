@@ -10,6 +10,17 @@ public class WhisperContextParams {
      * Enables GPU usage.
      */
     public boolean useGPU = true;
+    /**
+     * Loads the model from a read only memory map of the file instead of reading it through a stream.
+     * whisper.cpp copies the weights into the context memory while loading and the map is released afterwards,
+     * so the loaded model is not shared with other processes, use {@link #shareModel} to share it between contexts.
+     */
+    public boolean useMmap;
+    /**
+     * Reuses the model already loaded for the same file and params, the model is released with its last context.
+     * Only applies to contexts without state, as those created by {@link WhisperJNI#initNoState}.
+     */
+    public boolean shareModel;
 
     /**
      * Public constructor.
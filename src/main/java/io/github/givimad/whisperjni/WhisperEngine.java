@@ -0,0 +1,730 @@
+package io.github.givimad.whisperjni;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * The {@link WhisperEngine} class shares a single {@link WhisperContext} between a fixed pool of {@link WhisperState}
+ * instances and runs the submitted jobs on them concurrently.
+ * <p>
+ * States are created once and reused, each engine thread is bound to its own state and runs the jobs it takes from the queue on it.
+ * The number of pending jobs is bounded, submitting a job while the queue is full blocks the caller until there is room.
+ * Pending jobs run by priority and then by deadline, jobs whose deadline is reached or whose future is cancelled
+ * are removed from the queue at once if pending and aborted if running, so they stop using the cpu and free their queue room.
+ * The engine threads budget is split between the running and pending live jobs, each job gets an equal share when it starts.
+ * Queue and transcription times are aggregated in histograms, see {@link #getStats()}.
+ * On Linux the states can also be pinned to disjoint cpu sets, see {@link WhisperEngineParams#pinStates}.
+ * Long recordings can be split and transcribed on all the states at once, see {@link #transcribeLong},
+ * and short clips can be packed together to share a whisper window, see {@link #transcribeBatch}.
+ * <p>
+ * You need to dispose the native memory for its instances by calling {@link #close}, which waits for the pending jobs.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperEngine implements AutoCloseable {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLES_PER_TIMESTAMP = SAMPLE_RATE / 100;
+    private static final AtomicInteger engineCount = new AtomicInteger();
+    private final WhisperJNI whisper;
+    private final WhisperContext context;
+    private final List<WhisperState> states;
+    private final BlockingQueue<WhisperState> unboundStates;
+    private final ThreadLocal<WhisperState> boundState = new ThreadLocal<>();
+    private final Semaphore permits;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timer;
+    private final AtomicLong taskCount = new AtomicLong();
+    private final AtomicInteger runningJobs = new AtomicInteger();
+    private final AtomicInteger pendingJobs = new AtomicInteger();
+    private final int nThreads;
+    private final boolean partitionThreads;
+    private final int longChunkSamples;
+    private final int longSearchSamples;
+    private final WhisperBatch batch;
+    private volatile int threadsPerJob;
+    private final Map<WhisperState, int[]> affinities = new IdentityHashMap<>();
+    private final WhisperEngineStats stats = new WhisperEngineStats();
+    private final Map<Integer, WhisperEngineStats> priorityStats = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Internal engine constructor, use {@link WhisperJNI#initEngine(java.nio.file.Path, WhisperEngineParams)}.
+     *
+     * @param whisper library instance
+     * @param context context without state shared by the pool
+     * @param params  engine params
+     * @throws IOException if a state can not be created
+     */
+    protected WhisperEngine(WhisperJNI whisper, WhisperContext context, WhisperEngineParams params) throws IOException {
+        if (params.nStates < 1) {
+            throw new IllegalArgumentException("nStates should be greater than zero");
+        }
+        if (params.queueSize < 0) {
+            throw new IllegalArgumentException("queueSize should not be negative");
+        }
+        if (params.longChunkMs <= 0 || params.longSearchMs < 0 || params.longSearchMs >= params.longChunkMs) {
+            throw new IllegalArgumentException("longChunkMs should be greater than zero and longSearchMs");
+        }
+        this.whisper = whisper;
+        this.context = context;
+        this.nThreads = params.nThreads > 0 ? params.nThreads : Runtime.getRuntime().availableProcessors();
+        this.partitionThreads = params.partitionThreads;
+        this.threadsPerJob = partitionThreads ? Math.max(1, nThreads / params.nStates) : 0;
+        this.longChunkSamples = (int) ((long) params.longChunkMs * SAMPLE_RATE / 1000);
+        this.longSearchSamples = (int) ((long) params.longSearchMs * SAMPLE_RATE / 1000);
+        this.batch = new WhisperBatch(params.batchParams);
+        this.states = new ArrayList<>(params.nStates);
+        this.unboundStates = new ArrayBlockingQueue<>(params.nStates);
+        try {
+            for (int i = 0; i < params.nStates; i++) {
+                WhisperState state = whisper.initState(context);
+                if (state == null) {
+                    throw new IOException("Unable to init whisper state");
+                }
+                states.add(state);
+                unboundStates.add(state);
+            }
+            if (params.pinStates) {
+                pinStates();
+            }
+        } catch (IOException | RuntimeException e) {
+            states.forEach(WhisperState::close);
+            throw e;
+        }
+        this.permits = new Semaphore(params.nStates + params.queueSize);
+        var threadPrefix = "whisper-engine-" + engineCount.incrementAndGet() + "-";
+        var threadCount = new AtomicInteger();
+        // pending tasks are ordered by priority and deadline
+        this.executor = new ThreadPoolExecutor(params.nStates, params.nStates, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+            var thread = new Thread(() -> runBound(runnable), threadPrefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, threadPrefix + "timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gets the context shared by the engine states.
+     *
+     * @return the engine {@link WhisperContext}
+     */
+    public WhisperContext getContext() {
+        return context;
+    }
+
+    /**
+     * Gets the number of states in the pool.
+     *
+     * @return number of states
+     */
+    public int getNStates() {
+        return states.size();
+    }
+
+    /**
+     * Gets the number of threads shared by the running jobs.
+     *
+     * @return total number of threads
+     */
+    public int getNThreads() {
+        return nThreads;
+    }
+
+    /**
+     * Gets the cpus the state transcriptions are pinned to.
+     *
+     * @param index the state index
+     * @return the cpu ids, empty if the states are not pinned
+     */
+    public int[] getStateAffinity(int index) {
+        return affinities.getOrDefault(states.get(index), new int[0]).clone();
+    }
+
+    /**
+     * Gets the timing histograms of all the jobs.
+     * Queue times are recorded for every job, transcription timings only for the {@link #transcribe} jobs.
+     *
+     * @return the engine {@link WhisperEngineStats}
+     */
+    public WhisperEngineStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Gets the timing histograms of the jobs submitted with a priority, so each request class can be measured on its own.
+     *
+     * @param priority the job priority
+     * @return the {@link WhisperEngineStats} of the priority
+     */
+    public WhisperEngineStats getStats(int priority) {
+        return priorityStats.computeIfAbsent(priority, key -> new WhisperEngineStats());
+    }
+
+    /**
+     * Gets the number of running jobs.
+     *
+     * @return number of running jobs
+     */
+    public int getRunningJobs() {
+        return runningJobs.get();
+    }
+
+    /**
+     * Gets the number of threads assigned to the last started job, which is the parallelism the engine chose for the current load.
+     *
+     * @return threads per job, or 0 if thread partitioning is disabled
+     */
+    public int getThreadsPerJob() {
+        return threadsPerJob;
+    }
+
+    /**
+     * Transcribes the samples on the next free state.
+     * <p>
+     * The params and samples are read when the job runs, so they should not be modified until the future completes.
+     * Without samples the future is completed with an empty result.
+     *
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a future completed with the transcription {@link WhisperResult}.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    public CompletableFuture<WhisperResult> transcribe(WhisperFullParams params, float[] samples, int numSamples) throws InterruptedException {
+        return transcribe(params, samples, numSamples, 0, null);
+    }
+
+    /**
+     * Transcribes the samples on the next free state, pending jobs are run by priority and then by deadline.
+     * <p>
+     * The params and samples are read when the job runs, so they should not be modified until the future completes.
+     * Without samples the future is completed with an empty result.
+     *
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @param priority   the job priority, higher values run first.
+     * @param timeout    max time until the job completes, or null for no deadline.
+     * @return a future completed with the transcription {@link WhisperResult}.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    public CompletableFuture<WhisperResult> transcribe(WhisperFullParams params, float[] samples, int numSamples, int priority, Duration timeout) throws InterruptedException {
+        if (numSamples <= 0) {
+            // whisper would transcribe the spectrogram left on the state by the previous job
+            return CompletableFuture.completedFuture(WhisperResult.empty());
+        }
+        return submit((ctx, state) -> {
+            assertResult(whisper.fullWithState(ctx, state, params, samples, numSamples));
+            recordTimings(state, priority);
+            return whisper.fullGetResultFromState(state);
+        }, priority, timeout);
+    }
+
+    /**
+     * Transcribes the samples on the next free state.
+     * <p>
+     * The samples are read when the job runs, so they should not be modified until the future completes.
+     * Without samples the future is completed with an empty result.
+     *
+     * @param params     a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a future completed with the transcription {@link WhisperResult}.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    public CompletableFuture<WhisperResult> transcribe(WhisperCompiledParams params, float[] samples, int numSamples) throws InterruptedException {
+        return transcribe(params, samples, numSamples, 0, null);
+    }
+
+    /**
+     * Transcribes the samples on the next free state, pending jobs are run by priority and then by deadline.
+     * <p>
+     * The samples are read when the job runs, so they should not be modified until the future completes.
+     * Without samples the future is completed with an empty result.
+     *
+     * @param params     a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @param priority   the job priority, higher values run first.
+     * @param timeout    max time until the job completes, or null for no deadline.
+     * @return a future completed with the transcription {@link WhisperResult}.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    public CompletableFuture<WhisperResult> transcribe(WhisperCompiledParams params, float[] samples, int numSamples, int priority, Duration timeout) throws InterruptedException {
+        if (numSamples <= 0) {
+            // whisper would transcribe the spectrogram left on the state by the previous job
+            return CompletableFuture.completedFuture(WhisperResult.empty());
+        }
+        return submit((ctx, state) -> {
+            assertResult(whisper.fullWithState(ctx, state, params, samples, numSamples));
+            recordTimings(state, priority);
+            return whisper.fullGetResultFromState(state);
+        }, priority, timeout);
+    }
+
+    /**
+     * Transcribes long audio concurrently, splitting it into chunks that run as independent jobs on the engine states.
+     * <p>
+     * The audio is split at its quietest points, see {@link WhisperVAD#splitAtSilence(float[], int, int, int)},
+     * in chunks of up to {@link WhisperEngineParams#longChunkMs}. The chunk results are joined in order
+     * with their timestamps relative to the first sample.
+     * Chunks do not share context, so the text of a chunk is not used as prompt for the next one.
+     * <p>
+     * The chunks are submitted from the calling thread, which blocks while the queue is full.
+     * If a chunk fails the future completes with its error and the remaining chunks are cancelled,
+     * cancelling the future also cancels them.
+     * The samples are read when the chunks run, so they should not be modified until the future completes.
+     * Without samples the future is completed with an empty result.
+     *
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration, a copy is taken.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a future completed with the joined {@link WhisperResult}.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    public CompletableFuture<WhisperResult> transcribeLong(WhisperFullParams params, float[] samples, int numSamples) throws InterruptedException {
+        return transcribeLong(params, samples, numSamples, 0, null);
+    }
+
+    /**
+     * Transcribes long audio concurrently, splitting it into chunks that run as independent jobs on the engine states.
+     *
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration, a copy is taken.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @param priority   the chunks priority, higher values run first.
+     * @param timeout    max time until each chunk completes, or null for no deadline.
+     * @return a future completed with the joined {@link WhisperResult}.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     * @see #transcribeLong(WhisperFullParams, float[], int)
+     */
+    public CompletableFuture<WhisperResult> transcribeLong(WhisperFullParams params, float[] samples, int numSamples, int priority, Duration timeout) throws InterruptedException {
+        int[] bounds = WhisperVAD.splitAtSilence(samples, numSamples, longChunkSamples, longSearchSamples);
+        if (numSamples == 0) {
+            // whisper would transcribe the spectrogram left on the state by the previous job
+            return CompletableFuture.completedFuture(WhisperResult.empty());
+        }
+        var chunkParams = new WhisperFullParams(params);
+        // states are reused between jobs, the text of unrelated audio should not be used as prompt
+        chunkParams.noContext = true;
+        int nChunks = bounds.length - 1;
+        var chunks = new ArrayList<CompletableFuture<WhisperResult>>(nChunks);
+        try {
+            for (int i = 0; i < nChunks; i++) {
+                int start = bounds[i];
+                int length = bounds[i + 1] - start;
+                long offset = start / SAMPLES_PER_TIMESTAMP;
+                chunks.add(submit((ctx, state) -> {
+                    float[] chunk = Arrays.copyOfRange(samples, start, start + length);
+                    assertResult(whisper.fullWithState(ctx, state, chunkParams, chunk, length));
+                    recordTimings(state, priority);
+                    return whisper.fullGetResultFromState(state).mapTimestamps(timestamp -> timestamp + offset);
+                }, priority, timeout));
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            chunks.forEach(chunk -> chunk.cancel(false));
+            throw e;
+        }
+        return joinJobs(chunks, WhisperResult::concat);
+    }
+
+    /**
+     * Transcribes many short clips packing them together, so they share the 30 seconds whisper window instead of each one paying for it.
+     * <p>
+     * Clips are packed in order, see {@link WhisperBatch}, and each pack runs as a job on the engine states.
+     * The packs are submitted from the calling thread, which blocks while the queue is full.
+     * If a pack fails the future completes with its error and the remaining packs are cancelled,
+     * cancelling the future also cancels them.
+     * The clips are read when the packs run, so they should not be modified until the future completes.
+     *
+     * @param params a {@link WhisperFullParams} instance with the desired configuration, a copy is taken.
+     * @param clips  the clips audio samples (f32 encoded samples with sample rate 16000).
+     * @return a future completed with a {@link WhisperResult} for each clip, in the same order, with timestamps relative to the clip start.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    public CompletableFuture<List<WhisperResult>> transcribeBatch(WhisperFullParams params, List<float[]> clips) throws InterruptedException {
+        return transcribeBatch(params, clips, 0, null);
+    }
+
+    /**
+     * Transcribes many short clips packing them together, so they share the 30 seconds whisper window instead of each one paying for it.
+     *
+     * @param params   a {@link WhisperFullParams} instance with the desired configuration, a copy is taken.
+     * @param clips    the clips audio samples (f32 encoded samples with sample rate 16000).
+     * @param priority the packs priority, higher values run first.
+     * @param timeout  max time until each pack completes, or null for no deadline.
+     * @return a future completed with a {@link WhisperResult} for each clip, in the same order, with timestamps relative to the clip start.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     * @see #transcribeBatch(WhisperFullParams, List)
+     */
+    public CompletableFuture<List<WhisperResult>> transcribeBatch(WhisperFullParams params, List<float[]> clips, int priority, Duration timeout) throws InterruptedException {
+        var packParams = WhisperBatch.packParams(params);
+        var packs = batch.pack(clips);
+        var jobs = new ArrayList<CompletableFuture<List<WhisperResult>>>(packs.size());
+        try {
+            for (var pack : packs) {
+                jobs.add(submit((ctx, state) -> {
+                    var results = pack.fullWithState(whisper, ctx, state, packParams, clips);
+                    recordTimings(state, priority);
+                    return results;
+                }, priority, timeout));
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            jobs.forEach(job -> job.cancel(false));
+            throw e;
+        }
+        return joinJobs(jobs, results -> {
+            var clipResults = new ArrayList<WhisperResult>(clips.size());
+            results.forEach(clipResults::addAll);
+            return clipResults;
+        });
+    }
+
+    /**
+     * Runs a job on the state of the next free engine thread.
+     * The state is only leased to the job while it runs, it should not be used after the job returns.
+     *
+     * @param job the job to run.
+     * @param <T> the job result type.
+     * @return a future completed with the job result.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    public <T> CompletableFuture<T> submit(Job<T> job) throws InterruptedException {
+        return submit(job, 0, null);
+    }
+
+    /**
+     * Runs a job on the state of the next free engine thread, pending jobs are run by priority and then by deadline.
+     * The state is only leased to the job while it runs, it should not be used after the job returns.
+     * <p>
+     * When the deadline is reached the future completes with a {@link TimeoutException},
+     * pending jobs are discarded and the transcription running on the job state is aborted.
+     * Cancelling the future has the same effect.
+     *
+     * @param job      the job to run.
+     * @param priority the job priority, higher values run first.
+     * @param timeout  max time until the job completes, or null for no deadline.
+     * @param <T>      the job result type.
+     * @return a future completed with the job result.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    public <T> CompletableFuture<T> submit(Job<T> job, int priority, Duration timeout) throws InterruptedException {
+        assertOpen();
+        permits.acquire();
+        var task = new Task<>(job, priority, timeout == null ? Long.MAX_VALUE : timeout.toNanos());
+        pendingJobs.incrementAndGet();
+        try {
+            assertOpen();
+            if (timeout != null) {
+                task.timeout = timer.schedule(task::expire, timeout.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            executor.execute(task);
+        } catch (IllegalStateException | RejectedExecutionException e) {
+            task.leavePending();
+            permits.release();
+            throw new IllegalStateException("Engine is closed", e);
+        }
+        task.future.whenComplete((result, error) -> {
+            if (error instanceof CancellationException) {
+                task.abort();
+            }
+            if (error != null) {
+                task.discard();
+            }
+        });
+        return task.future;
+    }
+
+    /**
+     * Stops accepting jobs, waits for the pending ones and releases the native memory.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executor.shutdown();
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        timer.shutdownNow();
+        states.forEach(WhisperState::close);
+        context.close();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs an engine thread bound to one of the states, the state is released for a replacement thread when it exits.
+     */
+    private void runBound(Runnable worker) {
+        WhisperState state;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                state = unboundStates.take();
+                break;
+            } catch (InterruptedException e) {
+                // the thread first task would be lost
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        boundState.set(state);
+        try {
+            int[] cpus = affinities.get(state);
+            if (cpus != null) {
+                // before the first transcription, the ggml compute threads are created once per thread and keep its affinity
+                whisper.setCPUAffinity(cpus);
+            }
+            worker.run();
+        } finally {
+            boundState.remove();
+            unboundStates.add(state);
+        }
+    }
+
+    private void pinStates() {
+        int[] cpus = whisper.getCPUAffinity();
+        if (cpus.length == 0) {
+            throw new UnsupportedOperationException("Cpu affinity is not supported on this platform");
+        }
+        // contiguous cpu ids usually share caches and numa node
+        int nStates = states.size();
+        for (int i = 0; i < nStates; i++) {
+            int from = i * cpus.length / nStates;
+            int to = (i + 1) * cpus.length / nStates;
+            int[] stateCpus = to > from ? Arrays.copyOfRange(cpus, from, to) : new int[]{cpus[i % cpus.length]};
+            whisper.setCPUAffinity(states.get(i), stateCpus);
+            affinities.put(states.get(i), stateCpus);
+        }
+    }
+
+    private void assignThreads(WhisperState state) {
+        // jobs waiting in the queue will start as soon as a state is free, so they count as load
+        int load = Math.max(1, Math.min(states.size(), runningJobs.get() + pendingJobs.get()));
+        int threads = Math.max(1, nThreads / load);
+        int[] cpus = affinities.get(state);
+        if (cpus != null) {
+            // more threads than pinned cpus would just time slice
+            threads = Math.min(threads, cpus.length);
+        }
+        threadsPerJob = threads;
+        whisper.setNThreads(state, threads);
+    }
+
+    /**
+     * Completes with the merged results of the jobs once all of them succeed,
+     * or with the first error, cancelling the remaining jobs.
+     */
+    private static <T, R> CompletableFuture<R> joinJobs(List<CompletableFuture<T>> jobs, Function<List<T>, R> merge) {
+        var result = new CompletableFuture<R>();
+        CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            if (error == null) {
+                var results = new ArrayList<T>(jobs.size());
+                jobs.forEach(job -> results.add(job.join()));
+                result.complete(merge.apply(results));
+            }
+        });
+        for (var job : jobs) {
+            job.whenComplete((ignored, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                }
+            });
+        }
+        result.whenComplete((ignored, error) -> {
+            if (error != null) {
+                jobs.forEach(job -> job.cancel(false));
+            }
+        });
+        return result;
+    }
+
+    private void recordTimings(WhisperState state, int priority) {
+        var timings = whisper.fullGetTimingsFromState(state);
+        stats.record(timings);
+        getStats(priority).record(timings);
+    }
+
+    private void assertOpen() {
+        if (closed) {
+            throw new IllegalStateException("Engine is closed");
+        }
+    }
+
+    private static void assertResult(int result) throws IOException {
+        if (result != 0) {
+            throw new IOException("Transcription failed with code " + result);
+        }
+    }
+
+    private class Task<T> implements Runnable, Comparable<Task<?>> {
+        private final Job<T> job;
+        private final int priority;
+        private final long deadline;
+        private final long sequence = taskCount.getAndIncrement();
+        private final long submitTime = System.nanoTime();
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+        private WhisperState runningState;
+        private boolean abortRequested;
+        private final AtomicBoolean pending = new AtomicBoolean(true);
+
+        private Task(Job<T> job, int priority, long timeoutNanos) {
+            this.job = job;
+            this.priority = priority;
+            this.deadline = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + timeoutNanos;
+        }
+
+        @Override
+        public void run() {
+            leavePending();
+            try {
+                if (future.isDone()) {
+                    return;
+                }
+                WhisperState state = boundState.get();
+                try {
+                    synchronized (this) {
+                        if (future.isDone()) {
+                            return;
+                        }
+                        runningState = state;
+                    }
+                    long queueUs = (System.nanoTime() - submitTime) / 1000;
+                    stats.getQueue().record(queueUs);
+                    getStats(priority).getQueue().record(queueUs);
+                    runningJobs.incrementAndGet();
+                    try {
+                        if (partitionThreads) {
+                            assignThreads(state);
+                        }
+                        future.complete(job.run(context, state));
+                    } finally {
+                        runningJobs.decrementAndGet();
+                    }
+                } finally {
+                    synchronized (this) {
+                        runningState = null;
+                        if (abortRequested) {
+                            // the abort may have arrived after the transcription ended, it should not stop the next job
+                            whisper.clearAbort(state);
+                        }
+                    }
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                permits.release();
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Stops counting the task as load, once.
+         */
+        private void leavePending() {
+            if (pending.compareAndSet(true, false)) {
+                pendingJobs.decrementAndGet();
+            }
+        }
+
+        /**
+         * Removes the completed task from the queue, so it does not hold its permit or count as load until dequeued.
+         */
+        private void discard() {
+            leavePending();
+            if (executor.remove(this)) {
+                // run is not called for removed tasks
+                permits.release();
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+        }
+
+        private void expire() {
+            if (future.completeExceptionally(new TimeoutException("Job deadline reached"))) {
+                abort();
+            }
+        }
+
+        private synchronized void abort() {
+            if (runningState != null) {
+                abortRequested = true;
+                whisper.abort(runningState);
+            }
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            if (deadline != other.deadline) {
+                return Long.compare(deadline, other.deadline);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * The interface {@link WhisperEngine.Job} represents a unit of work run on a leased state.
+     *
+     * @param <T> the job result type.
+     * @author Miguel Álvarez Díez - Initial contribution
+     */
+    public interface Job<T> {
+        /**
+         * Runs the job.
+         *
+         * @param context the shared {@link WhisperContext}.
+         * @param state   the {@link WhisperState} leased to this job.
+         * @return the job result.
+         * @throws Exception on failure, the job future is completed exceptionally.
+         */
+        T run(WhisperContext context, WhisperState state) throws Exception;
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperEngineParams} class contains the {@link WhisperEngine} params.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperEngineParams {
+    /**
+     * Number of {@link WhisperState} instances in the pool, which is also the number of jobs run in parallel.
+     * Each state holds its own kv cache and compute buffers.
+     */
+    public int nStates = 1;
+    /**
+     * Number of jobs that can wait for a free state, submitting more jobs blocks the caller until there is room.
+     */
+    public int queueSize = 16;
+    /**
+     * Number of threads shared by the running jobs, the number of available processors is used if not positive.
+     */
+    public int nThreads = 0;
+    /**
+     * Split {@link #nThreads} evenly between the running jobs, so concurrent transcriptions do not oversubscribe the cpu.
+     * When disabled each job uses the {@link WhisperFullParams#nThreads} value of its params.
+     */
+    public boolean partitionThreads = true;
+    /**
+     * Pin each state to its own slice of the cpus available to the process, only supported on Linux.
+     * Keeps concurrent transcriptions from thrashing each other caches or migrating between numa nodes.
+     * The engine thread bound to the state is pinned when it starts, so the compute threads it creates stay on the same cpus.
+     * The thread share of a job is capped to the number of cpus of its state.
+     */
+    public boolean pinStates = false;
+    /**
+     * Max chunk length in milliseconds used by {@link WhisperEngine#transcribeLong}, a bit under the 30 seconds whisper window
+     * so each chunk is transcribed in a single window.
+     */
+    public int longChunkMs = 28000;
+    /**
+     * Audio in milliseconds before each max chunk end where {@link WhisperEngine#transcribeLong} looks for the quietest point to split.
+     */
+    public int longSearchMs = 5000;
+    /**
+     * Params used by {@link WhisperEngine#transcribeBatch} to pack short clips, defaults are used if null.
+     */
+    public WhisperBatchParams batchParams;
+    /**
+     * Params used to load the shared {@link WhisperContext}, defaults are used if null.
+     */
+    public WhisperContextParams contextParams;
+
+    /**
+     * Public constructor.
+     */
+    public WhisperEngineParams() {
+
+    }
+}
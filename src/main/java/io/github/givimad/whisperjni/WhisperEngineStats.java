@@ -0,0 +1,74 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperEngineStats} class aggregates the {@link WhisperTimings} of the transcriptions run by a {@link WhisperEngine},
+ * along with the time jobs wait for a free state.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperEngineStats {
+    private final WhisperHistogram queue = new WhisperHistogram();
+    private final WhisperHistogram total = new WhisperHistogram();
+    private final WhisperHistogram mel = new WhisperHistogram();
+    private final WhisperHistogram encode = new WhisperHistogram();
+    private final WhisperHistogram decode = new WhisperHistogram();
+
+    /**
+     * Internal stats constructor.
+     */
+    protected WhisperEngineStats() {
+
+    }
+
+    /**
+     * Gets the time from job submission until a state starts running it, for all the jobs.
+     *
+     * @return queue time histogram
+     */
+    public WhisperHistogram getQueue() {
+        return queue;
+    }
+
+    /**
+     * Gets the {@link WhisperTimings#getTotalUs()} histogram.
+     *
+     * @return total time histogram
+     */
+    public WhisperHistogram getTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the {@link WhisperTimings#getMelUs()} histogram.
+     *
+     * @return mel time histogram
+     */
+    public WhisperHistogram getMel() {
+        return mel;
+    }
+
+    /**
+     * Gets the {@link WhisperTimings#getEncodeUs()} histogram.
+     *
+     * @return encode time histogram
+     */
+    public WhisperHistogram getEncode() {
+        return encode;
+    }
+
+    /**
+     * Gets the {@link WhisperTimings#getDecodeUs()} histogram.
+     *
+     * @return decode time histogram
+     */
+    public WhisperHistogram getDecode() {
+        return decode;
+    }
+
+    void record(WhisperTimings timings) {
+        total.record(timings.getTotalUs());
+        mel.record(timings.getMelUs());
+        encode.record(timings.getEncodeUs());
+        decode.record(timings.getDecodeUs());
+    }
+}
@@ -39,6 +39,10 @@ public class WhisperFullParams {
      * Do not generate timestamps
      */
     public boolean noTimestamps;
+    /**
+     * Compute token level timestamps, available through {@link WhisperTokens}
+     */
+    public boolean tokenTimestamps;
     /**
      * Detect language
      */
@@ -131,6 +135,18 @@ public class WhisperFullParams {
      * Penalty for non grammar tokens.
      */
     public float grammarPenalty = 100f;
+    /**
+     * Called from the transcribing thread each time a new segment is generated.
+     */
+    public NewSegmentCallback newSegmentCallback;
+    /**
+     * Called from the transcribing thread with the transcription progress.
+     */
+    public ProgressCallback progressCallback;
+    /**
+     * Called from the transcribing thread each time before the encoder starts.
+     */
+    public EncoderBeginCallback encoderBeginCallback;
     /**
      * Creates a new {@link WhisperFullParams} instance using the provided {@link WhisperSamplingStrategy}
      *
@@ -146,4 +162,92 @@ public class WhisperFullParams {
     public WhisperFullParams() {
         this(WhisperSamplingStrategy.BEAM_SEARCH);
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates a copy of the provided {@link WhisperFullParams} instance.
+     *
+     * @param params the {@link WhisperFullParams} to copy
+     */
+    public WhisperFullParams(WhisperFullParams params) {
+        this.strategy = params.strategy;
+        this.nThreads = params.nThreads;
+        this.audioCtx = params.audioCtx;
+        this.nMaxTextCtx = params.nMaxTextCtx;
+        this.offsetMs = params.offsetMs;
+        this.durationMs = params.durationMs;
+        this.translate = params.translate;
+        this.noTimestamps = params.noTimestamps;
+        this.tokenTimestamps = params.tokenTimestamps;
+        this.detectLanguage = params.detectLanguage;
+        this.language = params.language;
+        this.initialPrompt = params.initialPrompt;
+        this.noContext = params.noContext;
+        this.singleSegment = params.singleSegment;
+        this.printSpecial = params.printSpecial;
+        this.printProgress = params.printProgress;
+        this.printRealtime = params.printRealtime;
+        this.printTimestamps = params.printTimestamps;
+        this.suppressBlank = params.suppressBlank;
+        this.suppressNonSpeechTokens = params.suppressNonSpeechTokens;
+        this.temperature = params.temperature;
+        this.maxInitialTs = params.maxInitialTs;
+        this.lengthPenalty = params.lengthPenalty;
+        this.temperatureInc = params.temperatureInc;
+        this.entropyThold = params.entropyThold;
+        this.logprobThold = params.logprobThold;
+        this.noSpeechThold = params.noSpeechThold;
+        this.greedyBestOf = params.greedyBestOf;
+        this.beamSearchBeamSize = params.beamSearchBeamSize;
+        this.beamSearchPatience = params.beamSearchPatience;
+        this.grammar = params.grammar;
+        this.grammarPenalty = params.grammarPenalty;
+        this.newSegmentCallback = params.newSegmentCallback;
+        this.progressCallback = params.progressCallback;
+        this.encoderBeginCallback = params.encoderBeginCallback;
+    }
+
+    /**
+     * The interface {@link WhisperFullParams.NewSegmentCallback} receives the segments while they are generated.
+     *
+     * @author Miguel Álvarez Díez - Initial contribution
+     */
+    public interface NewSegmentCallback {
+        /**
+         * Called once for each new segment.
+         *
+         * @param index the segment index
+         * @param start start timestamp of the segment, 800 -> 8s
+         * @param end   end timestamp of the segment, 1050 -> 10.5s
+         * @param text  the segment text
+         */
+        void onNewSegment(int index, long start, long end, String text);
+    }
+
+    /**
+     * The interface {@link WhisperFullParams.ProgressCallback} receives the transcription progress.
+     *
+     * @author Miguel Álvarez Díez - Initial contribution
+     */
+    public interface ProgressCallback {
+        /**
+         * Called when the transcription progress changes.
+         *
+         * @param progress the progress percentage, from 0 to 100
+         */
+        void onProgress(int progress);
+    }
+
+    /**
+     * The interface {@link WhisperFullParams.EncoderBeginCallback} is notified before each encoder run.
+     *
+     * @author Miguel Álvarez Díez - Initial contribution
+     */
+    public interface EncoderBeginCallback {
+        /**
+         * Called before the encoder runs.
+         *
+         * @return false to stop the transcription
+         */
+        boolean onEncoderBegin();
+    }
+}
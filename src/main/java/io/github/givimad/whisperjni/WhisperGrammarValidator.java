@@ -0,0 +1,463 @@
+package io.github.givimad.whisperjni;
+
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link WhisperGrammarValidator} class checks a GBNF grammar in a single pass over the text,
+ * following the syntax accepted by the whisper.cpp grammar parser.
+ * <p>
+ * The grammar is parsed into rules of alternatives, parenthesized groups become anonymous rules.
+ * Then every check runs over the parsed rules in linear time:
+ * references should be defined, the rules reachable from root should be able to produce a finite text,
+ * and should not be left recursive, which the whisper.cpp grammar sampler can not handle.
+ * Errors report the offset of the problem in the grammar text.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+final class WhisperGrammarValidator {
+    private static final String ROOT = "root";
+    private final String text;
+    private final int length;
+    private final Map<String, Integer> ruleIds = new HashMap<>();
+    private final List<Rule> rules = new ArrayList<>();
+
+    private WhisperGrammarValidator(String text) {
+        this.text = text;
+        this.length = text.length();
+    }
+
+    /**
+     * Asserts the grammar text is valid.
+     *
+     * @param grammarText GBNF grammar text.
+     * @throws ParseException if grammar is invalid, the error offset points to the problem.
+     */
+    static void validate(String grammarText) throws ParseException {
+        var validator = new WhisperGrammarValidator(grammarText);
+        validator.parse();
+        validator.check();
+    }
+
+    private static final class Rule {
+        private final String name;
+        // offset of the rule definition, or of its first reference until defined
+        private int position;
+        private final List<List<Element>> alternatives = new ArrayList<>();
+        private boolean defined;
+        private boolean productive;
+        private boolean nullable;
+
+        private Rule(String name, int position) {
+            this.name = name;
+            this.position = position;
+        }
+    }
+
+    private static final class Element {
+        // referenced rule id, or -1 for terminals
+        private final int rule;
+        private final int position;
+        private final boolean empty;
+        private boolean optional;
+
+        private Element(int rule, int position, boolean empty) {
+            this.rule = rule;
+            this.position = position;
+            this.empty = empty;
+        }
+    }
+
+    private void parse() throws ParseException {
+        int pos = skipSpace(0, true);
+        if (pos >= length) {
+            throw error("Empty grammar.", 0);
+        }
+        while (pos < length) {
+            pos = parseRule(pos);
+        }
+    }
+
+    private int parseRule(int pos) throws ParseException {
+        int nameEnd = parseName(pos);
+        if (nameEnd == pos) {
+            throw error("Expected rule name", pos);
+        }
+        String name = text.substring(pos, nameEnd);
+        int id = ruleId(name, pos);
+        Rule rule = rules.get(id);
+        if (rule.defined) {
+            throw error("Duplicated expression: " + name, pos);
+        }
+        rule.defined = true;
+        rule.position = pos;
+        int next = skipSpace(nameEnd, false);
+        if (!text.startsWith("::=", next)) {
+            throw error("Expected ::= after rule name " + name, next);
+        }
+        int bodyStart = skipSpace(next + 3, true);
+        next = parseAlternates(bodyStart, rule, false);
+        if (rule.alternatives.size() == 1 && rule.alternatives.get(0).isEmpty()) {
+            throw error("Missed expression value for: " + name, bodyStart);
+        }
+        if (next < length && text.charAt(next) != '\n' && text.charAt(next) != '\r') {
+            throw error("Expected newline or end of rule " + name + ", found '" + text.charAt(next) + "'", next);
+        }
+        return skipSpace(next, true);
+    }
+
+    private int parseAlternates(int pos, Rule rule, boolean nested) throws ParseException {
+        var sequence = new ArrayList<Element>();
+        pos = parseSequence(pos, sequence, nested);
+        rule.alternatives.add(sequence);
+        while (pos < length && text.charAt(pos) == '|') {
+            sequence = new ArrayList<>();
+            pos = parseSequence(skipSpace(pos + 1, true), sequence, nested);
+            rule.alternatives.add(sequence);
+        }
+        return pos;
+    }
+
+    private int parseSequence(int pos, List<Element> sequence, boolean nested) throws ParseException {
+        while (pos < length) {
+            char c = text.charAt(pos);
+            if (c == '"') {
+                int start = pos;
+                pos++;
+                while (pos < length && text.charAt(pos) != '"') {
+                    pos = parseChar(pos, start, "literal");
+                }
+                if (pos >= length) {
+                    throw error("Unclosed text", start);
+                }
+                sequence.add(new Element(-1, start, pos == start + 1));
+                pos = skipSpace(pos + 1, nested);
+            } else if (c == '[') {
+                int start = pos;
+                pos++;
+                if (pos < length && text.charAt(pos) == '^') {
+                    pos++;
+                }
+                while (pos < length && text.charAt(pos) != ']') {
+                    pos = parseChar(pos, start, "character class");
+                    if (pos + 1 < length && text.charAt(pos) == '-' && text.charAt(pos + 1) != ']') {
+                        pos = parseChar(pos + 1, start, "character class");
+                    }
+                }
+                if (pos >= length) {
+                    throw error("Unclosed regex", start);
+                }
+                sequence.add(new Element(-1, start, false));
+                pos = skipSpace(pos + 1, nested);
+            } else if (c == '.') {
+                // any character
+                sequence.add(new Element(-1, pos, false));
+                pos = skipSpace(pos + 1, nested);
+            } else if (isNameChar(c)) {
+                int end = parseName(pos);
+                sequence.add(new Element(ruleId(text.substring(pos, end), pos), pos, false));
+                pos = skipSpace(end, nested);
+            } else if (c == '(') {
+                int start = pos;
+                // groups are anonymous rules, like the native parser does
+                var group = new Rule(null, start);
+                group.defined = true;
+                int groupId = rules.size();
+                rules.add(group);
+                pos = parseAlternates(skipSpace(pos + 1, true), group, true);
+                if (pos >= length || text.charAt(pos) != ')') {
+                    throw error("Unclosed group", start);
+                }
+                sequence.add(new Element(groupId, start, false));
+                pos = skipSpace(pos + 1, nested);
+            } else if (c == '*' || c == '+' || c == '?') {
+                if (sequence.isEmpty()) {
+                    throw error("Expected item before repetition operator '" + c + "'", pos);
+                }
+                if (c != '+') {
+                    sequence.get(sequence.size() - 1).optional = true;
+                }
+                pos = skipSpace(pos + 1, nested);
+            } else {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    private int parseChar(int pos, int start, String kind) throws ParseException {
+        if (text.charAt(pos) != '\\') {
+            return pos + 1;
+        }
+        if (pos + 1 >= length) {
+            throw error("Unclosed " + kind, start);
+        }
+        char escape = text.charAt(pos + 1);
+        switch (escape) {
+            case 'x':
+                return parseHex(pos, 2);
+            case 'u':
+                return parseHex(pos, 4);
+            case 'U':
+                return parseHex(pos, 8);
+            case 't':
+            case 'r':
+            case 'n':
+            case '\\':
+            case '"':
+            case '[':
+            case ']':
+                return pos + 2;
+            default:
+                throw error("Unknown escape '\\" + escape + "'", pos);
+        }
+    }
+
+    private int parseHex(int pos, int digits) throws ParseException {
+        int end = pos + 2 + digits;
+        for (int i = pos + 2; i < end; i++) {
+            if (i >= length || Character.digit(text.charAt(i), 16) == -1) {
+                throw error("Expected " + digits + " hex digits in escape", pos);
+            }
+        }
+        return end;
+    }
+
+    private int parseName(int pos) {
+        while (pos < length && isNameChar(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-';
+    }
+
+    private int skipSpace(int pos, boolean newlineOk) {
+        while (pos < length) {
+            char c = text.charAt(pos);
+            if (c == '#') {
+                while (pos < length && text.charAt(pos) != '\n' && text.charAt(pos) != '\r') {
+                    pos++;
+                }
+            } else if (c == ' ' || c == '\t' || (newlineOk && (c == '\n' || c == '\r'))) {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    private int ruleId(String name, int position) {
+        return ruleIds.computeIfAbsent(name, key -> {
+            rules.add(new Rule(key, position));
+            return rules.size() - 1;
+        });
+    }
+
+    private void check() throws ParseException {
+        Integer root = ruleIds.get(ROOT);
+        if (root == null || !rules.get(root).defined) {
+            throw error("Missing root expression.", 0);
+        }
+        // the native parser rejects undefined rules even if they are not reachable
+        for (Rule rule : rules) {
+            if (!rule.defined) {
+                throw error("Unable to resolve expression: " + rule.name, rule.position);
+            }
+        }
+        boolean[] reachable = reachable(root);
+        computeProductive();
+        computeNullable();
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            if (reachable[i] && !rule.productive) {
+                throw error(rule.name != null ?
+                        "Expression can not terminate: " + rule.name :
+                        "Group can not terminate", rule.position);
+            }
+        }
+        assertNoLeftRecursion(reachable);
+    }
+
+    private boolean[] reachable(int root) {
+        boolean[] reachable = new boolean[rules.size()];
+        var pending = new ArrayDeque<Integer>();
+        reachable[root] = true;
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            for (List<Element> sequence : rules.get(pending.poll()).alternatives) {
+                for (Element element : sequence) {
+                    if (element.rule != -1 && !reachable[element.rule]) {
+                        reachable[element.rule] = true;
+                        pending.add(element.rule);
+                    }
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Marks the rules that can produce a finite text.
+     * Each alternative counts the references it still waits for, a rule is productive once one of its alternatives waits for none,
+     * so each reference is visited once.
+     */
+    private void computeProductive() {
+        List<List<int[]>> dependents = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            dependents.add(new ArrayList<>());
+        }
+        var ready = new ArrayDeque<Integer>();
+        for (int i = 0; i < rules.size(); i++) {
+            for (List<Element> sequence : rules.get(i).alternatives) {
+                // {rule, references still pending}
+                int[] alternative = {i, 0};
+                for (Element element : sequence) {
+                    if (element.rule != -1 && !element.optional) {
+                        alternative[1]++;
+                        dependents.get(element.rule).add(alternative);
+                    }
+                }
+                if (alternative[1] == 0) {
+                    ready.add(i);
+                }
+            }
+        }
+        while (!ready.isEmpty()) {
+            int id = ready.poll();
+            Rule rule = rules.get(id);
+            if (rule.productive) {
+                continue;
+            }
+            rule.productive = true;
+            for (int[] alternative : dependents.get(id)) {
+                if (--alternative[1] == 0) {
+                    ready.add(alternative[0]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the rules that can produce an empty text, same algorithm as {@link #computeProductive()}.
+     */
+    private void computeNullable() {
+        List<List<int[]>> dependents = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            dependents.add(new ArrayList<>());
+        }
+        var ready = new ArrayDeque<Integer>();
+        for (int i = 0; i < rules.size(); i++) {
+            for (List<Element> sequence : rules.get(i).alternatives) {
+                int[] alternative = {i, 0};
+                boolean canBeEmpty = true;
+                for (Element element : sequence) {
+                    if (element.optional || element.empty) {
+                        continue;
+                    }
+                    if (element.rule == -1) {
+                        canBeEmpty = false;
+                        break;
+                    }
+                    alternative[1]++;
+                }
+                if (!canBeEmpty) {
+                    continue;
+                }
+                for (Element element : sequence) {
+                    if (element.rule != -1 && !element.optional) {
+                        dependents.get(element.rule).add(alternative);
+                    }
+                }
+                if (alternative[1] == 0) {
+                    ready.add(i);
+                }
+            }
+        }
+        while (!ready.isEmpty()) {
+            int id = ready.poll();
+            Rule rule = rules.get(id);
+            if (rule.nullable) {
+                continue;
+            }
+            rule.nullable = true;
+            for (int[] alternative : dependents.get(id)) {
+                if (--alternative[1] == 0) {
+                    ready.add(alternative[0]);
+                }
+            }
+        }
+    }
+
+    /**
+     * A rule is left recursive if it can reach itself before consuming any character,
+     * this is a cycle search over the references that can appear first in an alternative.
+     */
+    private void assertNoLeftRecursion(boolean[] reachable) throws ParseException {
+        List<List<Element>> firstReferences = new ArrayList<>();
+        for (Rule rule : rules) {
+            var references = new ArrayList<Element>();
+            for (List<Element> sequence : rule.alternatives) {
+                for (Element element : sequence) {
+                    if (element.rule != -1) {
+                        references.add(element);
+                    }
+                    boolean elementNullable = element.optional || element.empty ||
+                            (element.rule != -1 && rules.get(element.rule).nullable);
+                    if (!elementNullable) {
+                        break;
+                    }
+                }
+            }
+            firstReferences.add(references);
+        }
+        // 0 not visited, 1 on the current path, 2 done
+        int[] state = new int[rules.size()];
+        int[] nextReference = new int[rules.size()];
+        var path = new ArrayDeque<Integer>();
+        for (int start = 0; start < rules.size(); start++) {
+            if (!reachable[start] || state[start] != 0) {
+                continue;
+            }
+            state[start] = 1;
+            path.push(start);
+            while (!path.isEmpty()) {
+                int current = path.peek();
+                List<Element> references = firstReferences.get(current);
+                if (nextReference[current] == references.size()) {
+                    state[current] = 2;
+                    path.pop();
+                    continue;
+                }
+                Element reference = references.get(nextReference[current]++);
+                if (state[reference.rule] == 1) {
+                    Rule rule = rules.get(reference.rule);
+                    throw error("Left recursive expression: " + (rule.name != null ? rule.name : "group"), reference.position);
+                }
+                if (state[reference.rule] == 0) {
+                    state[reference.rule] = 1;
+                    path.push(reference.rule);
+                }
+            }
+        }
+    }
+
+    private ParseException error(String message, int offset) {
+        int line = 1;
+        int lineStart = 0;
+        for (int i = 0; i < offset && i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+        return new ParseException(message + " (line " + line + ", column " + (offset - lineStart + 1) + ")", offset);
+    }
+}
@@ -0,0 +1,123 @@
+package io.github.givimad.whisperjni;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The {@link WhisperHistogram} class aggregates durations in power of two buckets, it is safe to use from several threads.
+ * <p>
+ * Bucket i counts the durations from 2^i to 2^(i+1) microseconds, bucket 0 also counts the durations under 1 microsecond,
+ * so percentiles are accurate up to a factor of two.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperHistogram {
+    /**
+     * Number of buckets, enough for durations of more than a day.
+     */
+    public static final int N_BUCKETS = 40;
+    private final AtomicLongArray buckets = new AtomicLongArray(N_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalUs = new AtomicLong();
+    private final AtomicLong maxUs = new AtomicLong();
+
+    /**
+     * Public constructor.
+     */
+    public WhisperHistogram() {
+
+    }
+
+    /**
+     * Adds a duration.
+     *
+     * @param us duration in microseconds
+     */
+    public void record(long us) {
+        us = Math.max(0, us);
+        int bucket = Math.min(N_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, us)));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalUs.addAndGet(us);
+        maxUs.accumulateAndGet(us, Math::max);
+    }
+
+    /**
+     * Gets the number of durations recorded.
+     *
+     * @return number of durations
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the sum of the durations recorded.
+     *
+     * @return total time in microseconds
+     */
+    public long getTotalUs() {
+        return totalUs.get();
+    }
+
+    /**
+     * Gets the longest duration recorded.
+     *
+     * @return time in microseconds
+     */
+    public long getMaxUs() {
+        return maxUs.get();
+    }
+
+    /**
+     * Gets the mean of the durations recorded.
+     *
+     * @return time in microseconds, or 0 if empty
+     */
+    public double getMeanUs() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalUs.get() / n;
+    }
+
+    /**
+     * Gets an upper bound of the duration percentile.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return the upper limit of the bucket containing the percentile in microseconds, or 0 if empty
+     */
+    public long getPercentileUs(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile should be between 0 and 100");
+        }
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(maxUs.get(), (1L << (i + 1)) - 1);
+            }
+        }
+        return maxUs.get();
+    }
+
+    /**
+     * Gets a copy of the bucket counts.
+     *
+     * @return count of each bucket
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[N_BUCKETS];
+        for (int i = 0; i < N_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+}
@@ -4,8 +4,13 @@ import io.github.givimad.whisperjni.internal.LibraryUtils;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The {@link WhisperJNI} class allows to use whisper.cpp thought the JNI.
@@ -14,7 +19,8 @@ import java.nio.file.Path;
  */
 public class WhisperJNI {
     private static boolean libraryLoaded;
-    private static LibraryLogger libraryLogger;
+    private static volatile LibraryLogger libraryLogger;
+    private static Thread logThread;
 
     //region native api
     private native int init(String model, WhisperContextParams params);
@@ -25,14 +31,70 @@ public class WhisperJNI {
 
     private native int loadGrammar(String text);
 
+    private native int loadSerializedGrammar(byte[] data);
+
+    private native byte[] serializeGrammar(int grammar);
+
+    private native void setGrammarCacheSize(long maxBytes);
+
+    private native long[] getGrammarCacheUsage();
+
     private native void initOpenVINOEncoder(int model, String device);
 
     private native boolean isMultilingual(int model);
 
+    private native float[] detectLanguage(int context, int state, float[] samples, int numSamples, int offsetMs);
+
+    private native int langMaxId();
+
+    private native int langId(String lang);
+
+    private native String langStr(int id, boolean fullName);
+
     private native int full(int context, WhisperFullParams params, float[] samples, int numSamples);
 
     private native int fullWithState(int context, int state, WhisperFullParams params, float[] samples, int numSamples);
 
+    private native int fullDirect(int context, WhisperFullParams params, FloatBuffer samples, int offset, int numSamples);
+
+    private native int fullWithStateDirect(int context, int state, WhisperFullParams params, FloatBuffer samples, int offset, int numSamples);
+
+    private native int compileFullParams(WhisperFullParams params);
+
+    private native int fullCompiled(int context, int params, float[] samples, int numSamples);
+
+    private native int fullWithStateCompiled(int context, int state, int params, float[] samples, int numSamples);
+
+    private native int fullCompiledDirect(int context, int params, FloatBuffer samples, int offset, int numSamples);
+
+    private native int fullWithStateCompiledDirect(int context, int state, int params, FloatBuffer samples, int offset, int numSamples);
+
+    private native int fullPCM16(int context, int state, WhisperFullParams params, int compiledParams, short[] samples, int numSamples);
+
+    private native int fullPCMDirect(int context, int state, WhisperFullParams params, int compiledParams, ByteBuffer samples, int offset, int numFrames, int format, int channels, boolean swapBytes);
+
+    private native int pcmToMel(int context, int state, float[] samples, int numSamples);
+
+    private native int setMel(int context, int state, float[] mel, int nLen, int nMel);
+
+    private native int encode(int context, int state, int offset);
+
+    private native int fullFromMel(int context, int state, WhisperFullParams params, int compiledParams);
+
+    private native void setContextAbort(int context, boolean abort);
+
+    private native void setStateAbort(int state, boolean abort);
+
+    private native void setStateThreads(int state, int nThreads);
+
+    private native boolean setStateAffinity(int state, int[] cpus);
+
+    private native boolean setThreadAffinity(int[] cpus);
+
+    private native int[] getThreadAffinity();
+
+    private native int[] getComputeAffinity(int state, int nThreads);
+
     private native int fullNSegments(int context);
 
     private native int fullNSegmentsFromState(int state);
@@ -49,15 +111,35 @@ public class WhisperJNI {
 
     private native String fullGetSegmentTextFromState(int state, int index);
 
+    private native WhisperResult fullGetResult(int context);
+
+    private native WhisperResult fullGetResultFromState(int state);
+
+    private native long[] fullGetTimings(int context);
+
+    private native long[] fullGetTimingsFromState(int state);
+
+    private native WhisperTokens fullGetTokens(int context);
+
+    private native WhisperTokens fullGetTokensFromState(int state);
+
+    private native byte[] tokenToBytes(int context, int token);
+
+    private native int tokenEot(int context);
+
     private native void freeContext(int context);
 
     private native void freeState(int state);
 
     private native void freeGrammar(int grammar);
 
+    private native void freeFullParams(int params);
+
     private native String printSystemInfo();
 
-    private native static void setLogger(boolean enabled);
+    private native static void setLogger(int minLevel);
+
+    private native static String[] pollLogs(int[] levels, int timeoutMs);
 
 //endregion
 
@@ -116,7 +198,9 @@ public class WhisperJNI {
         if(params == null) {
             params = new WhisperContextParams();
         }
-        int ref = initNoState(model.toAbsolutePath().toString(), params);
+        // shared models are keyed by path, so links to the same file should resolve to the same model
+        String modelPath = params.shareModel ? model.toRealPath().toString() : model.toAbsolutePath().toString();
+        int ref = initNoState(modelPath, params);
         if(ref == -1) {
             return null;
         }
@@ -138,6 +222,48 @@ public class WhisperJNI {
         return new WhisperState(this, ref, context);
     }
 
+    /**
+     * Creates a new {@link WhisperStreamSession}, which transcribes audio pushed in small chunks.
+     *
+     * @param context  the {@link WhisperContext} of the state.
+     * @param state    the {@link WhisperState} used to decode, the session does not release it.
+     * @param params   {@link WhisperStreamParams} params for the session.
+     * @param listener consumer of the session segments.
+     * @return A new {@link WhisperStreamSession}.
+     */
+    public WhisperStreamSession initStreamSession(WhisperContext context, WhisperState state, WhisperStreamParams params, WhisperStreamSession.Listener listener) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        if(params == null) {
+            params = new WhisperStreamParams();
+        }
+        return new WhisperStreamSession(this, context, state, params, listener);
+    }
+
+    /**
+     * Creates a new {@link WhisperEngine}, which loads the model once and transcribes on a pool of states.
+     *
+     * @param model  {@link Path} to the whisper ggml model file.
+     * @param params {@link WhisperEngineParams} params for the engine initialization.
+     * @return A new {@link WhisperEngine}.
+     * @throws IOException if model file is missing or the model or states can not be loaded.
+     */
+    public WhisperEngine initEngine(Path model, WhisperEngineParams params) throws IOException {
+        if(params == null) {
+            params = new WhisperEngineParams();
+        }
+        WhisperContext context = initNoState(model, params.contextParams);
+        if(context == null) {
+            throw new IOException("Unable to load whisper model");
+        }
+        try {
+            return new WhisperEngine(this, context, params);
+        } catch (IOException | RuntimeException e) {
+            context.close();
+            throw e;
+        }
+    }
+
     public WhisperGrammar parseGrammar(Path grammarPath) throws IOException {
         if(!Files.exists(grammarPath) || Files.isDirectory(grammarPath)){
             throw new FileNotFoundException("Grammar file not found");
@@ -156,6 +282,72 @@ public class WhisperJNI {
         return new WhisperGrammar(this, ref, text);
     }
 
+    /**
+     * Loads a grammar from the binary form returned by {@link #serializeGrammar(WhisperGrammar)}, without parsing its text.
+     * <p>
+     * The binary form is portable between platforms but not between library versions.
+     *
+     * @param data serialized grammar.
+     * @return A new {@link WhisperGrammar}.
+     * @throws IOException if the data is not a valid serialized grammar.
+     */
+    public WhisperGrammar loadGrammar(byte[] data) throws IOException {
+        int ref = loadSerializedGrammar(data);
+        if(ref == -1) {
+            return null;
+        }
+        // the data was validated by the native side, it starts with the magic and the text
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int textLength = buffer.getInt(4);
+        String text = new String(data, 8, textLength, StandardCharsets.UTF_8);
+        return new WhisperGrammar(this, ref, text);
+    }
+
+    /**
+     * Gets the binary form of a parsed grammar, to store it and load it later with {@link #loadGrammar(byte[])}.
+     *
+     * @param grammar a {@link WhisperGrammar} instance.
+     * @return serialized grammar.
+     */
+    public byte[] serializeGrammar(WhisperGrammar grammar) {
+        WhisperJNIPointer.assertAvailable(grammar);
+        return serializeGrammar(grammar.ref);
+    }
+
+    /**
+     * Sets the memory limit of the parsed grammar cache, 32MiB by default.
+     * <p>
+     * Grammars are deduplicated by their text, parsing or loading a cached grammar shares the native grammar instead of parsing it again.
+     * When over the limit the least recently used grammars are evicted from the cache,
+     * evicted grammars stay in memory until their {@link WhisperGrammar} instances and the compiled params using them are released.
+     *
+     * @param maxBytes memory limit in bytes, 0 disables the cache.
+     */
+    public void setGrammarCacheCapacity(long maxBytes) {
+        if(maxBytes < 0) {
+            throw new IllegalArgumentException("Grammar cache capacity can not be negative");
+        }
+        setGrammarCacheSize(maxBytes);
+    }
+
+    /**
+     * Gets the number of parsed grammars held by the cache.
+     *
+     * @return number of cached grammars.
+     */
+    public int getGrammarCacheCount() {
+        return (int) getGrammarCacheUsage()[0];
+    }
+
+    /**
+     * Gets the approximated memory used by the parsed grammars held by the cache.
+     *
+     * @return memory in bytes.
+     */
+    public long getGrammarCacheSize() {
+        return getGrammarCacheUsage()[1];
+    }
+
     /**
      * Initializes OpenVino encoder.
      *
@@ -178,6 +370,70 @@ public class WhisperJNI {
         return isMultilingual(context.ref);
     }
 
+    /**
+     * Detects the spoken language without transcribing the audio.
+     * <p>
+     * Only the mel spectrogram of the samples and the encoder pass for the window at the offset are computed,
+     * followed by a single decoder step, so it is much cheaper than a full transcription with
+     * {@link WhisperFullParams#detectLanguage} enabled. A few seconds of audio are usually enough.
+     * The state mel spectrogram and encoder output are overwritten.
+     * The model should be multilingual, see {@link #isMultilingual(WhisperContext)}.
+     *
+     * @param state      a {@link WhisperState} instance.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @param offsetMs   offset of the window to analyze in milliseconds.
+     * @return the probability of each language, indexed by language id, see {@link #getLanguageCode(int)}.
+     * @throws RuntimeException if the detection fails, for example if the offset is past the end of the audio.
+     */
+    public float[] detectLanguage(WhisperState state, float[] samples, int numSamples, int offsetMs) {
+        WhisperJNIPointer.assertAvailable(state);
+        WhisperJNIPointer.assertAvailable(state.getContext());
+        if(numSamples < 0 || numSamples > samples.length) {
+            throw new IndexOutOfBoundsException("Invalid number of samples");
+        }
+        return detectLanguage(state.getContext().ref, state.ref, samples, numSamples, offsetMs);
+    }
+
+    /**
+     * Gets the number of languages known by whisper.cpp, language ids go from 0 to this value minus one.
+     *
+     * @return number of languages.
+     */
+    public int getLanguageCount() {
+        return langMaxId() + 1;
+    }
+
+    /**
+     * Gets the id of a language.
+     *
+     * @param lang language code, like "en", or full name, like "english".
+     * @return the language id or -1 if the language is unknown.
+     */
+    public int getLanguageId(String lang) {
+        return langId(lang);
+    }
+
+    /**
+     * Gets the code of a language, the value accepted by {@link WhisperFullParams#language}.
+     *
+     * @param id language id.
+     * @return the language code, like "en", or null if the id is unknown.
+     */
+    public String getLanguageCode(int id) {
+        return langStr(id, false);
+    }
+
+    /**
+     * Gets the full name of a language.
+     *
+     * @param id language id.
+     * @return the language name, like "english", or null if the id is unknown.
+     */
+    public String getLanguageName(int id) {
+        return langStr(id, true);
+    }
+
     /**
      * Run whisper.cpp full audio transcription.
      *
@@ -214,6 +470,490 @@ public class WhisperJNI {
         return fullWithState(context.ref, state.ref, params, samples, numSamples);
     }
 
+    /**
+     * Run whisper.cpp full audio transcription reading the samples in place from a direct buffer.
+     * A direct {@link java.nio.ByteBuffer} can be used through {@link java.nio.ByteBuffer#asFloatBuffer()}.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples    a direct {@link FloatBuffer} in native byte order, read from its current position (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int full(WhisperContext context, WhisperFullParams params, FloatBuffer samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        if(params.grammar != null) {
+            WhisperJNIPointer.assertAvailable(params.grammar);
+        }
+        assertDirectSamples(samples, numSamples);
+        return fullDirect(context.ref, params, samples, samples.position(), numSamples);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription reading the samples in place from a direct buffer.
+     * A direct {@link java.nio.ByteBuffer} can be used through {@link java.nio.ByteBuffer#asFloatBuffer()}.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param state      the {@link WhisperState} used to transcribe.
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples    a direct {@link FloatBuffer} in native byte order, read from its current position (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int fullWithState(WhisperContext context, WhisperState state, WhisperFullParams params, FloatBuffer samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        if(params.grammar != null) {
+            WhisperJNIPointer.assertAvailable(params.grammar);
+        }
+        assertDirectSamples(samples, numSamples);
+        return fullWithStateDirect(context.ref, state.ref, params, samples, samples.position(), numSamples);
+    }
+
+    /**
+     * Converts the params into their native representation once, so they can be reused across transcriptions.
+     *
+     * @param params a {@link WhisperFullParams} instance with the desired configuration.
+     * @return a new {@link WhisperCompiledParams}.
+     */
+    public WhisperCompiledParams compileParams(WhisperFullParams params) {
+        if(params.grammar != null) {
+            WhisperJNIPointer.assertAvailable(params.grammar);
+        }
+        return new WhisperCompiledParams(this, compileFullParams(params));
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param params     a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int full(WhisperContext context, WhisperCompiledParams params, float[] samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(params);
+        return fullCompiled(context.ref, params.ref, samples, numSamples);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param state      the {@link WhisperState} used to transcribe.
+     * @param params     a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int fullWithState(WhisperContext context, WhisperState state, WhisperCompiledParams params, float[] samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        WhisperJNIPointer.assertAvailable(params);
+        return fullWithStateCompiled(context.ref, state.ref, params.ref, samples, numSamples);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription reading the samples in place from a direct buffer.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param params     a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples    a direct {@link FloatBuffer} in native byte order, read from its current position (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int full(WhisperContext context, WhisperCompiledParams params, FloatBuffer samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(params);
+        assertDirectSamples(samples, numSamples);
+        return fullCompiledDirect(context.ref, params.ref, samples, samples.position(), numSamples);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription reading the samples in place from a direct buffer.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param state      the {@link WhisperState} used to transcribe.
+     * @param params     a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples    a direct {@link FloatBuffer} in native byte order, read from its current position (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int fullWithState(WhisperContext context, WhisperState state, WhisperCompiledParams params, FloatBuffer samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        WhisperJNIPointer.assertAvailable(params);
+        assertDirectSamples(samples, numSamples);
+        return fullWithStateCompiledDirect(context.ref, state.ref, params.ref, samples, samples.position(), numSamples);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over signed 16 bit pcm samples, converted to f32 by the native library.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples    the audio samples (mono pcm16 samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int full(WhisperContext context, WhisperFullParams params, short[] samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        if(params.grammar != null) {
+            WhisperJNIPointer.assertAvailable(params.grammar);
+        }
+        if (numSamples < 0 || numSamples > samples.length) {
+            throw new IndexOutOfBoundsException("Samples out of array range");
+        }
+        return fullPCM16(context.ref, -1, params, -1, samples, numSamples);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over integer pcm samples read in place from a direct buffer.
+     * Samples are converted to f32 and interleaved channels are mixed down by the native library.
+     *
+     * @param context   the {@link WhisperContext} used to transcribe.
+     * @param params    a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples   a direct {@link ByteBuffer}, read from its current position using its byte order (sample rate 16000).
+     * @param format    the {@link WhisperPCMFormat} of the samples.
+     * @param channels  number of interleaved channels.
+     * @param numFrames the number of audio frames provided, each frame contains a sample per channel.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int full(WhisperContext context, WhisperFullParams params, ByteBuffer samples, WhisperPCMFormat format, int channels, int numFrames) {
+        WhisperJNIPointer.assertAvailable(context);
+        if(params.grammar != null) {
+            WhisperJNIPointer.assertAvailable(params.grammar);
+        }
+        assertDirectPCM(samples, format, channels, numFrames);
+        return fullPCMDirect(context.ref, -1, params, -1, samples, samples.position(), numFrames, format.ordinal(), channels,
+                samples.order() != ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over signed 16 bit pcm samples, converted to f32 by the native library.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param state      the {@link WhisperState} used to transcribe.
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples    the audio samples (mono pcm16 samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int fullWithState(WhisperContext context, WhisperState state, WhisperFullParams params, short[] samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        if(params.grammar != null) {
+            WhisperJNIPointer.assertAvailable(params.grammar);
+        }
+        if (numSamples < 0 || numSamples > samples.length) {
+            throw new IndexOutOfBoundsException("Samples out of array range");
+        }
+        return fullPCM16(context.ref, state.ref, params, -1, samples, numSamples);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over integer pcm samples read in place from a direct buffer.
+     * Samples are converted to f32 and interleaved channels are mixed down by the native library.
+     *
+     * @param context   the {@link WhisperContext} used to transcribe.
+     * @param state     the {@link WhisperState} used to transcribe.
+     * @param params    a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples   a direct {@link ByteBuffer}, read from its current position using its byte order (sample rate 16000).
+     * @param format    the {@link WhisperPCMFormat} of the samples.
+     * @param channels  number of interleaved channels.
+     * @param numFrames the number of audio frames provided, each frame contains a sample per channel.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int fullWithState(WhisperContext context, WhisperState state, WhisperFullParams params, ByteBuffer samples, WhisperPCMFormat format, int channels, int numFrames) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        if(params.grammar != null) {
+            WhisperJNIPointer.assertAvailable(params.grammar);
+        }
+        assertDirectPCM(samples, format, channels, numFrames);
+        return fullPCMDirect(context.ref, state.ref, params, -1, samples, samples.position(), numFrames, format.ordinal(), channels,
+                samples.order() != ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over signed 16 bit pcm samples, converted to f32 by the native library.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param params     a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples    the audio samples (mono pcm16 samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int full(WhisperContext context, WhisperCompiledParams params, short[] samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(params);
+        if (numSamples < 0 || numSamples > samples.length) {
+            throw new IndexOutOfBoundsException("Samples out of array range");
+        }
+        return fullPCM16(context.ref, -1, null, params.ref, samples, numSamples);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over integer pcm samples read in place from a direct buffer.
+     * Samples are converted to f32 and interleaved channels are mixed down by the native library.
+     *
+     * @param context   the {@link WhisperContext} used to transcribe.
+     * @param params    a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples   a direct {@link ByteBuffer}, read from its current position using its byte order (sample rate 16000).
+     * @param format    the {@link WhisperPCMFormat} of the samples.
+     * @param channels  number of interleaved channels.
+     * @param numFrames the number of audio frames provided, each frame contains a sample per channel.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int full(WhisperContext context, WhisperCompiledParams params, ByteBuffer samples, WhisperPCMFormat format, int channels, int numFrames) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(params);
+        assertDirectPCM(samples, format, channels, numFrames);
+        return fullPCMDirect(context.ref, -1, null, params.ref, samples, samples.position(), numFrames, format.ordinal(), channels,
+                samples.order() != ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over signed 16 bit pcm samples, converted to f32 by the native library.
+     *
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param state      the {@link WhisperState} used to transcribe.
+     * @param params     a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples    the audio samples (mono pcm16 samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int fullWithState(WhisperContext context, WhisperState state, WhisperCompiledParams params, short[] samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        WhisperJNIPointer.assertAvailable(params);
+        if (numSamples < 0 || numSamples > samples.length) {
+            throw new IndexOutOfBoundsException("Samples out of array range");
+        }
+        return fullPCM16(context.ref, state.ref, null, params.ref, samples, numSamples);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over integer pcm samples read in place from a direct buffer.
+     * Samples are converted to f32 and interleaved channels are mixed down by the native library.
+     *
+     * @param context   the {@link WhisperContext} used to transcribe.
+     * @param state     the {@link WhisperState} used to transcribe.
+     * @param params    a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @param samples   a direct {@link ByteBuffer}, read from its current position using its byte order (sample rate 16000).
+     * @param format    the {@link WhisperPCMFormat} of the samples.
+     * @param channels  number of interleaved channels.
+     * @param numFrames the number of audio frames provided, each frame contains a sample per channel.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int fullWithState(WhisperContext context, WhisperState state, WhisperCompiledParams params, ByteBuffer samples, WhisperPCMFormat format, int channels, int numFrames) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        WhisperJNIPointer.assertAvailable(params);
+        assertDirectPCM(samples, format, channels, numFrames);
+        return fullPCMDirect(context.ref, state.ref, null, params.ref, samples, samples.position(), numFrames, format.ordinal(), channels,
+                samples.order() != ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Computes the log mel spectrogram of the samples and stores it in the state,
+     * to run several transcriptions over it with {@link #fullFromMel(WhisperContext, WhisperState, WhisperFullParams)}.
+     *
+     * @param state      the {@link WhisperState} that stores the spectrogram.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int pcmToMel(WhisperState state, float[] samples, int numSamples) {
+        WhisperJNIPointer.assertAvailable(state);
+        WhisperJNIPointer.assertAvailable(state.getContext());
+        if (numSamples < 0 || numSamples > samples.length) {
+            throw new IndexOutOfBoundsException("Samples out of array range");
+        }
+        return pcmToMel(state.getContext().ref, state.ref, samples, numSamples);
+    }
+
+    /**
+     * Stores a log mel spectrogram computed elsewhere in the state.
+     *
+     * @param state the {@link WhisperState} that stores the spectrogram.
+     * @param mel   the spectrogram values, nMel rows of nLen frames, each frame covers 10 milliseconds.
+     * @param nLen  the number of frames.
+     * @param nMel  the number of mel bands, it should match the model, 80 or 128 for the large-v3 models.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int setMel(WhisperState state, float[] mel, int nLen, int nMel) {
+        WhisperJNIPointer.assertAvailable(state);
+        WhisperJNIPointer.assertAvailable(state.getContext());
+        if (nLen < 0 || nMel < 0 || (long) nLen * nMel > mel.length) {
+            throw new IndexOutOfBoundsException("Mel spectrogram out of array range");
+        }
+        return setMel(state.getContext().ref, state.ref, mel, nLen, nMel);
+    }
+
+    /**
+     * Runs the encoder over the 30 seconds window of the state spectrogram starting at the offset.
+     *
+     * @param state  the {@link WhisperState} holding the spectrogram, see {@link #pcmToMel(WhisperState, float[], int)}.
+     * @param offset offset in spectrogram frames of 10 milliseconds.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int encode(WhisperState state, int offset) {
+        WhisperJNIPointer.assertAvailable(state);
+        WhisperJNIPointer.assertAvailable(state.getContext());
+        return encode(state.getContext().ref, state.ref, offset);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over the spectrogram already stored in the state,
+     * by {@link #pcmToMel(WhisperState, float[], int)}, {@link #setMel(WhisperState, float[], int, int)} or a previous transcription.
+     * <p>
+     * The spectrogram is not modified, so a clip can be transcribed and translated, or matched against several grammars,
+     * computing its spectrogram once. whisper.cpp still runs the encoder for each window.
+     *
+     * @param context the {@link WhisperContext} used to transcribe.
+     * @param state   the {@link WhisperState} used to transcribe.
+     * @param params  a {@link WhisperFullParams} instance with the desired configuration.
+     * @return a result code, values other than 0 indicates problems.
+     */
+    public int fullFromMel(WhisperContext context, WhisperState state, WhisperFullParams params) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        if(params.grammar != null) {
+            WhisperJNIPointer.assertAvailable(params.grammar);
+        }
+        return fullFromMel(context.ref, state.ref, params, -1);
+    }
+
+    /**
+     * Run whisper.cpp full audio transcription over the spectrogram already stored in the state.
+     *
+     * @param context the {@link WhisperContext} used to transcribe.
+     * @param state   the {@link WhisperState} used to transcribe.
+     * @param params  a {@link WhisperCompiledParams} instance with the desired configuration.
+     * @return a result code, values other than 0 indicates problems.
+     * @see #fullFromMel(WhisperContext, WhisperState, WhisperFullParams)
+     */
+    public int fullFromMel(WhisperContext context, WhisperState state, WhisperCompiledParams params) {
+        WhisperJNIPointer.assertAvailable(context);
+        WhisperJNIPointer.assertAvailable(state);
+        WhisperJNIPointer.assertAvailable(params);
+        return fullFromMel(context.ref, state.ref, null, params.ref);
+    }
+
+    /**
+     * Stops the transcription running on the context default state.
+     * If there is no transcription running the next one is stopped, the request is consumed when a transcription ends.
+     * The stopped transcription returns a result code other than 0.
+     *
+     * @param context the {@link WhisperContext} to abort.
+     */
+    public void abort(WhisperContext context) {
+        WhisperJNIPointer.assertAvailable(context);
+        setContextAbort(context.ref, true);
+    }
+
+    /**
+     * Stops the transcription running on the state, can be called from any thread.
+     * If there is no transcription running the next one is stopped, the request is consumed when a transcription ends.
+     * The stopped transcription returns a result code other than 0.
+     *
+     * @param state the {@link WhisperState} to abort.
+     */
+    public void abort(WhisperState state) {
+        WhisperJNIPointer.assertAvailable(state);
+        setStateAbort(state.ref, true);
+    }
+
+    /**
+     * Discards a pending abort request on the state.
+     *
+     * @param state the {@link WhisperState} to clear.
+     */
+    void clearAbort(WhisperState state) {
+        WhisperJNIPointer.assertAvailable(state);
+        setStateAbort(state.ref, false);
+    }
+
+    /**
+     * Sets the number of threads used by the transcriptions run on the state, overriding the {@link WhisperFullParams#nThreads} value.
+     * Takes effect on the next transcription.
+     *
+     * @param state    the {@link WhisperState} to configure.
+     * @param nThreads number of threads, or 0 to use the params value.
+     */
+    public void setNThreads(WhisperState state, int nThreads) {
+        WhisperJNIPointer.assertAvailable(state);
+        if (nThreads < 0) {
+            throw new IllegalArgumentException("nThreads should not be negative");
+        }
+        setStateThreads(state.ref, nThreads);
+    }
+
+    /**
+     * Pins the transcriptions run on the state to a set of cpus, only supported on Linux.
+     * The calling thread is pinned while the transcription runs and its previous affinity restored once it ends.
+     * <p>
+     * The ggml compute threads are created once per calling thread and keep the affinity they were created with,
+     * so pinning only reaches the compute threads created after it.
+     * It should be set before the first use of the state, which is enforced, from threads that have not run any transcription yet,
+     * or that were pinned to the same cpus before their first one, see {@link #setCPUAffinity(int[])}.
+     *
+     * @param state the {@link WhisperState} to configure.
+     * @param cpus  the cpu ids, null or empty to remove the affinity.
+     * @throws UnsupportedOperationException if cpu affinity is not supported on this platform.
+     * @throws IllegalStateException if the state was already used.
+     */
+    public void setCPUAffinity(WhisperState state, int[] cpus) {
+        WhisperJNIPointer.assertAvailable(state);
+        if (!setStateAffinity(state.ref, cpus)) {
+            throw new UnsupportedOperationException("Cpu affinity is not supported on this platform");
+        }
+    }
+
+    /**
+     * Pins the calling thread to a set of cpus, only supported on Linux.
+     * Should be called before the thread runs its first transcription, so the compute threads it creates inherit the affinity.
+     *
+     * @param cpus the cpu ids, not empty.
+     * @throws UnsupportedOperationException if cpu affinity is not supported on this platform or the cpus are not available.
+     */
+    public void setCPUAffinity(int[] cpus) {
+        if (cpus == null || cpus.length == 0) {
+            throw new IllegalArgumentException("cpus should not be empty");
+        }
+        if (!setThreadAffinity(cpus)) {
+            throw new UnsupportedOperationException("Unable to set the cpu affinity");
+        }
+    }
+
+    /**
+     * Runs an empty computation from the calling thread, as a transcription on the state would,
+     * and gets the cpus its compute threads are allowed to run on. Used to check the pinning in the tests.
+     *
+     * @param state    the {@link WhisperState} whose affinity is applied.
+     * @param nThreads number of compute threads.
+     * @return the cpu ids, empty if cpu affinity is not supported on this platform.
+     */
+    int[] getComputeCPUAffinity(WhisperState state, int nThreads) {
+        WhisperJNIPointer.assertAvailable(state);
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("nThreads should be greater than zero");
+        }
+        return getComputeAffinity(state.ref, nThreads);
+    }
+
+    /**
+     * Gets the cpus the calling thread is allowed to run on.
+     *
+     * @return the cpu ids, empty if cpu affinity is not supported on this platform.
+     */
+    public int[] getCPUAffinity() {
+        return getThreadAffinity();
+    }
+
     /**
      * Gets the available number of text segments.
      *
@@ -308,17 +1048,118 @@ public class WhisperJNI {
         return fullGetSegmentTextFromState(state.ref, index);
     }
 
+    /**
+     * Gets all the text segments in a single native call.
+     *
+     * @param context a {@link WhisperContext} used to transcribe
+     * @return a {@link WhisperResult} with the available segments
+     */
+    public WhisperResult fullGetResult(WhisperContext context) {
+        WhisperJNIPointer.assertAvailable(context);
+        return fullGetResult(context.ref);
+    }
+
+    /**
+     * Gets all the text segments in a single native call.
+     *
+     * @param state a {@link WhisperState} used to transcribe
+     * @return a {@link WhisperResult} with the available segments
+     */
+    public WhisperResult fullGetResultFromState(WhisperState state) {
+        WhisperJNIPointer.assertAvailable(state);
+        return fullGetResultFromState(state.ref);
+    }
+
+    /**
+     * Gets the timings of the last transcription run on the context default state.
+     *
+     * @param context a {@link WhisperContext} used to transcribe
+     * @return a {@link WhisperTimings} with the phase durations
+     */
+    public WhisperTimings fullGetTimings(WhisperContext context) {
+        WhisperJNIPointer.assertAvailable(context);
+        return new WhisperTimings(fullGetTimings(context.ref));
+    }
+
+    /**
+     * Gets the timings of the last transcription run on the state.
+     *
+     * @param state a {@link WhisperState} used to transcribe
+     * @return a {@link WhisperTimings} with the phase durations
+     */
+    public WhisperTimings fullGetTimingsFromState(WhisperState state) {
+        WhisperJNIPointer.assertAvailable(state);
+        return new WhisperTimings(fullGetTimingsFromState(state.ref));
+    }
+
+    /**
+     * Gets the token data of all the segments in a single native call.
+     *
+     * @param context a {@link WhisperContext} used to transcribe
+     * @return a {@link WhisperTokens} with the available tokens
+     */
+    public WhisperTokens fullGetTokens(WhisperContext context) {
+        WhisperJNIPointer.assertAvailable(context);
+        return fullGetTokens(context.ref);
+    }
+
+    /**
+     * Gets the token data of all the segments in a single native call.
+     *
+     * @param state a {@link WhisperState} used to transcribe
+     * @return a {@link WhisperTokens} with the available tokens
+     */
+    public WhisperTokens fullGetTokensFromState(WhisperState state) {
+        WhisperJNIPointer.assertAvailable(state);
+        return fullGetTokensFromState(state.ref);
+    }
+
+    /**
+     * Gets the text of a token.
+     *
+     * @param context a {@link WhisperContext} instance
+     * @param token   the token id
+     * @return the token text
+     */
+    public String tokenToString(WhisperContext context, int token) {
+        WhisperJNIPointer.assertAvailable(context);
+        return new String(tokenToBytes(context.ref, token), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the raw text bytes of a token, which can contain an incomplete UTF-8 sequence.
+     *
+     * @param context a {@link WhisperContext} instance
+     * @param token   the token id
+     * @return the token text bytes
+     */
+    byte[] tokenToBytes(WhisperContext context, int token) {
+        WhisperJNIPointer.assertAvailable(context);
+        return tokenToBytes(context.ref, token);
+    }
+
+    /**
+     * Gets the end of text token id, tokens with this id or greater are special tokens (timestamps, task and language markers)
+     * that are not part of the segment text.
+     *
+     * @param context a {@link WhisperContext} instance
+     * @return the end of text token id
+     */
+    public int tokenEot(WhisperContext context) {
+        WhisperJNIPointer.assertAvailable(context);
+        return tokenEot(context.ref);
+    }
+
     /**
      * Release context memory in native implementation.
      *
      * @param context the {@link WhisperContext} to release
      */
     public void free(WhisperContext context) {
-        if (context.isReleased()) {
+        if (!context.tryRelease()) {
             return;
         }
         freeContext(context.ref);
-        context.release();
     }
 
     /**
@@ -327,11 +1168,10 @@ public class WhisperJNI {
      * @param state the {@link WhisperState} to release
      */
     public void free(WhisperState state) {
-        if (state.isReleased()) {
+        if (!state.tryRelease()) {
             return;
         }
         freeState(state.ref);
-        state.release();
     }
 
     /**
@@ -340,11 +1180,22 @@ public class WhisperJNI {
      * @param grammar the {@link WhisperGrammar} to release
      */
     public void free(WhisperGrammar grammar) {
-        if (grammar.isReleased()) {
+        if (!grammar.tryRelease()) {
             return;
         }
         freeGrammar(grammar.ref);
-        grammar.release();
+    }
+
+    /**
+     * Release compiled params memory in native implementation.
+     *
+     * @param params the {@link WhisperCompiledParams} to release
+     */
+    public void free(WhisperCompiledParams params) {
+        if (!params.tryRelease()) {
+            return;
+        }
+        freeFullParams(params.ref);
     }
 
     /**
@@ -389,33 +1240,95 @@ public class WhisperJNI {
      * @param logger whisper.cpp log consumer, or null to disable the library default log to stderr.
      */
     public static void setLibraryLogger(LibraryLogger logger) {
-        libraryLogger = logger;
-        setLogger(libraryLogger != null);
+        setLibraryLogger(logger, WhisperLogLevel.DEBUG);
     }
 
     /**
-     * The class {@link WhisperJNI.LibraryLogger} allows to proxy the whisper.cpp logger.
+     * Proxy whisper.cpp logger.
+     * Should be called after {@link #loadLibrary()}.
+     * <p>
+     * Lines under the min level are discarded by the native library, the rest are queued without blocking
+     * the logging thread and delivered in order by a daemon thread, lines logged while the queue is full are dropped.
      *
-     * @author Miguel Álvarez Díez - Initial contribution
+     * @param logger   whisper.cpp log consumer, or null to disable the library default log to stderr.
+     * @param minLevel min {@link WhisperLogLevel} of the lines delivered to the logger.
      */
-    public interface LibraryLogger {
-        void log(String text);
+    public static void setLibraryLogger(LibraryLogger logger, WhisperLogLevel minLevel) {
+        synchronized (WhisperJNI.class) {
+            libraryLogger = logger;
+            setLogger(logger != null ? minLevel.ordinal() : -1);
+            if (logger != null && logThread == null) {
+                logThread = new Thread(WhisperJNI::drainLogs, "whisper-jni-log");
+                logThread.setDaemon(true);
+                logThread.start();
+            }
+        }
+    }
+
+    private static void drainLogs() {
+        var levelValues = WhisperLogLevel.values();
+        int[] levels = new int[64];
+        while (true) {
+            LibraryLogger logger;
+            synchronized (WhisperJNI.class) {
+                logger = libraryLogger;
+                if (logger == null) {
+                    logThread = null;
+                    return;
+                }
+            }
+            String[] lines = pollLogs(levels, 100);
+            if (lines == null) {
+                continue;
+            }
+            for (int i = 0; i < lines.length; i++) {
+                try {
+                    logger.log(levelValues[levels[i]], lines[i]);
+                } catch (RuntimeException ignored) {
+                    // a failing logger should not stop the log delivery
+                }
+            }
+        }
     }
 
     /**
      * Called from the cpp side of the library to proxy the whisper.cpp logs.
      *
      * @param text whisper.cpp log line.
+     * @deprecated the native library no longer calls it, lines are delivered from the log thread,
+     * see {@link #setLibraryLogger(LibraryLogger, WhisperLogLevel)}. Forwards the line to the current logger.
      */
+    @Deprecated
     protected static void log(String text) {
-        if (libraryLogger != null) {
-            libraryLogger.log(text);
+        LibraryLogger logger = libraryLogger;
+        if (logger != null) {
+            logger.log(WhisperLogLevel.INFO, text);
+        }
+    }
+
+    /**
+     * The class {@link WhisperJNI.LibraryLogger} allows to proxy the whisper.cpp logger.
+     *
+     * @author Miguel Álvarez Díez - Initial contribution
+     */
+    public interface LibraryLogger {
+        void log(String text);
+
+        /**
+         * Called for each whisper.cpp log line, from the library log thread.
+         *
+         * @param level the line {@link WhisperLogLevel}
+         * @param text  whisper.cpp log line.
+         */
+        default void log(WhisperLogLevel level, String text) {
+            log(text);
         }
     }
 
     /**
      * In order to avoid sharing pointers between the c++ and java, we use this
-     * util base class which holds a random integer id generated in the whisper.cpp wrapper.
+     * util base class which holds an integer id generated in the whisper.cpp wrapper.
+     * The wrapper rejects ids that were already released.
      *
      * @author Miguel Álvarez Díez - Initial contribution
      */
@@ -424,7 +1337,7 @@ public class WhisperJNI {
          * Native pointer reference identifier.
          */
         protected final int ref;
-        private boolean released;
+        private final AtomicBoolean released = new AtomicBoolean();
 
         /**
          * Asserts the provided pointer is still available.
@@ -440,7 +1353,7 @@ public class WhisperJNI {
         /**
          * Creates a new object used to represent a struct pointer on the native library.
          *
-         * @param ref a random integer id generated by the native wrapper
+         * @param ref an integer id generated by the native wrapper
          */
         protected WhisperJNIPointer(int ref) {
             this.ref = ref;
@@ -452,14 +1365,47 @@ public class WhisperJNI {
          * @return a boolean indicating if the native data was already released
          */
         protected boolean isReleased() {
-            return released;
+            return released.get();
         }
 
         /**
          * Mark the point as released
          */
         protected void release() {
-            released = true;
+            released.set(true);
+        }
+
+        /**
+         * Mark the pointer as released if it was not.
+         *
+         * @return true if the pointer was marked as released by this call
+         */
+        protected boolean tryRelease() {
+            return released.compareAndSet(false, true);
+        }
+    }
+
+    private static void assertDirectPCM(ByteBuffer samples, WhisperPCMFormat format, int channels, int numFrames) {
+        if (!samples.isDirect()) {
+            throw new IllegalArgumentException("Samples buffer should be direct");
+        }
+        if (channels < 1) {
+            throw new IllegalArgumentException("Channels should be greater than zero");
+        }
+        if (numFrames < 0 || (long) numFrames * channels * format.getSampleSize() > samples.remaining()) {
+            throw new IndexOutOfBoundsException("Samples out of buffer range");
+        }
+    }
+
+    private static void assertDirectSamples(FloatBuffer samples, int numSamples) {
+        if (!samples.isDirect()) {
+            throw new IllegalArgumentException("Samples buffer should be direct");
+        }
+        if (samples.order() != ByteOrder.nativeOrder()) {
+            throw new IllegalArgumentException("Samples buffer should use the native byte order");
+        }
+        if (numSamples < 0 || numSamples > samples.remaining()) {
+            throw new IndexOutOfBoundsException("Samples out of buffer range");
         }
     }
 
@@ -0,0 +1,25 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperLogLevel} enum contains the whisper.cpp log levels, sorted by severity.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public enum WhisperLogLevel {
+    /**
+     * Debug information
+     */
+    DEBUG,
+    /**
+     * General information
+     */
+    INFO,
+    /**
+     * Warnings
+     */
+    WARN,
+    /**
+     * Errors
+     */
+    ERROR
+}
@@ -0,0 +1,36 @@
+package io.github.givimad.whisperjni;
+/**
+ * The {@link WhisperPCMFormat} enum describes the integer pcm sample formats accepted by the library.
+ * Samples should use a 16000 sample rate, they are converted to f32 by the native library.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public enum WhisperPCMFormat {
+    /**
+     * Unsigned 8 bit samples
+     */
+    PCM8(1),
+    /**
+     * Signed 16 bit samples
+     */
+    PCM16(2),
+    /**
+     * Signed 32 bit samples
+     */
+    PCM32(4);
+
+    private final int sampleSize;
+
+    WhisperPCMFormat(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Gets the size of a sample.
+     *
+     * @return sample size in bytes
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+}
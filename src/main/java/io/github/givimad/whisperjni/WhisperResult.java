@@ -0,0 +1,194 @@
+package io.github.givimad.whisperjni;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * The {@link WhisperResult} class contains all the text segments of a transcription,
+ * retrieved from the native library in a single call.
+ * <p>
+ * The timestamps are stored in a single array and the texts as a single UTF-8 blob,
+ * segment texts are only decoded when requested.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperResult {
+    private final long[] timestamps;
+    private final byte[] text;
+    private final int[] textOffsets;
+
+    /**
+     * Internal result constructor, also called from the native library.
+     *
+     * @param timestamps  start and end timestamp of each segment, interleaved.
+     * @param text        UTF-8 encoded text of all the segments.
+     * @param textOffsets offset of each segment text in the text blob, followed by the blob length.
+     */
+    protected WhisperResult(long[] timestamps, byte[] text, int[] textOffsets) {
+        this.timestamps = timestamps;
+        this.text = text;
+        this.textOffsets = textOffsets;
+    }
+
+    /**
+     * Gets the number of text segments.
+     *
+     * @return number of segments
+     */
+    public int getNSegments() {
+        return textOffsets.length - 1;
+    }
+
+    /**
+     * Gets start timestamp of text segment by index.
+     *
+     * @param index the segment index
+     * @return start timestamp of segment text, 800 -> 8s
+     */
+    public long getSegmentTimestamp0(int index) {
+        checkIndex(index);
+        return timestamps[index * 2];
+    }
+
+    /**
+     * Gets end timestamp of text segment by index.
+     *
+     * @param index the segment index
+     * @return end timestamp of segment text, 1050 -> 10.5s
+     */
+    public long getSegmentTimestamp1(int index) {
+        checkIndex(index);
+        return timestamps[index * 2 + 1];
+    }
+
+    /**
+     * Gets text segment by index.
+     *
+     * @param index the segment index
+     * @return the segment text
+     */
+    public String getSegmentText(int index) {
+        checkIndex(index);
+        return new String(text, textOffsets[index], textOffsets[index + 1] - textOffsets[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets text segment by index.
+     *
+     * @param index the segment index
+     * @return a {@link WhisperSegment} instance
+     */
+    public WhisperSegment getSegment(int index) {
+        return new WhisperSegment(getSegmentTimestamp0(index), getSegmentTimestamp1(index), getSegmentText(index));
+    }
+
+    /**
+     * Gets all the text segments.
+     *
+     * @return list of {@link WhisperSegment}
+     */
+    public List<WhisperSegment> getSegments() {
+        int nSegments = getNSegments();
+        var segments = new ArrayList<WhisperSegment>(nSegments);
+        for (int i = 0; i < nSegments; i++) {
+            segments.add(getSegment(i));
+        }
+        return segments;
+    }
+
+    /**
+     * Gets the text of all the segments joined.
+     *
+     * @return the transcription text
+     */
+    public String getText() {
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a copy of this result with its timestamps mapped by the provided function.
+     *
+     * @param mapper timestamp mapping function
+     * @return a new {@link WhisperResult} sharing the text of this one
+     */
+    WhisperResult mapTimestamps(LongUnaryOperator mapper) {
+        long[] mapped = new long[timestamps.length];
+        for (int i = 0; i < timestamps.length; i++) {
+            mapped[i] = mapper.applyAsLong(timestamps[i]);
+        }
+        return new WhisperResult(mapped, text, textOffsets);
+    }
+
+    /**
+     * Creates a result with the segments of all the results, in order.
+     *
+     * @param results results to join
+     * @return a new {@link WhisperResult}
+     */
+    static WhisperResult concat(List<WhisperResult> results) {
+        int nSegments = 0;
+        int textLength = 0;
+        for (WhisperResult result : results) {
+            nSegments += result.getNSegments();
+            textLength += result.text.length;
+        }
+        long[] timestamps = new long[nSegments * 2];
+        byte[] text = new byte[textLength];
+        int[] textOffsets = new int[nSegments + 1];
+        int segment = 0;
+        int textOffset = 0;
+        for (WhisperResult result : results) {
+            int n = result.getNSegments();
+            System.arraycopy(result.timestamps, 0, timestamps, segment * 2, n * 2);
+            System.arraycopy(result.text, 0, text, textOffset, result.text.length);
+            for (int i = 0; i < n; i++) {
+                textOffsets[segment + i] = textOffset + result.textOffsets[i];
+            }
+            segment += n;
+            textOffset += result.text.length;
+        }
+        textOffsets[nSegments] = textOffset;
+        return new WhisperResult(timestamps, text, textOffsets);
+    }
+
+    /**
+     * Creates a result from its segments.
+     *
+     * @param segments the result segments
+     * @return a new {@link WhisperResult}
+     */
+    static WhisperResult of(List<WhisperSegment> segments) {
+        long[] timestamps = new long[segments.size() * 2];
+        byte[][] texts = new byte[segments.size()][];
+        int[] textOffsets = new int[segments.size() + 1];
+        for (int i = 0; i < segments.size(); i++) {
+            WhisperSegment segment = segments.get(i);
+            timestamps[i * 2] = segment.getStart();
+            timestamps[i * 2 + 1] = segment.getEnd();
+            texts[i] = segment.getText().getBytes(StandardCharsets.UTF_8);
+            textOffsets[i + 1] = textOffsets[i] + texts[i].length;
+        }
+        byte[] text = new byte[textOffsets[segments.size()]];
+        for (int i = 0; i < texts.length; i++) {
+            System.arraycopy(texts[i], 0, text, textOffsets[i], texts[i].length);
+        }
+        return new WhisperResult(timestamps, text, textOffsets);
+    }
+
+    /**
+     * Creates a result without segments.
+     *
+     * @return an empty {@link WhisperResult}
+     */
+    static WhisperResult empty() {
+        return new WhisperResult(new long[0], new byte[0], new int[] { 0 });
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= getNSegments()) {
+            throw new IndexOutOfBoundsException("Index out of range");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperSegment} class represents a transcribed text segment.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperSegment {
+    private final long start;
+    private final long end;
+    private final String text;
+
+    /**
+     * Creates a new text segment.
+     *
+     * @param start start timestamp of the segment, 800 -> 8s
+     * @param end   end timestamp of the segment, 1050 -> 10.5s
+     * @param text  the segment text
+     */
+    public WhisperSegment(long start, long end, String text) {
+        this.start = start;
+        this.end = end;
+        this.text = text;
+    }
+
+    /**
+     * Gets the segment start timestamp.
+     *
+     * @return start timestamp of segment text, 800 -> 8s
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Gets the segment end timestamp.
+     *
+     * @return end timestamp of segment text, 1050 -> 10.5s
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Gets the segment text.
+     *
+     * @return the segment text
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + " --> " + end + "]" + text;
+    }
+}
@@ -25,6 +25,11 @@ public class WhisperState extends WhisperJNI.WhisperJNIPointer {
         this.whisper = whisper;
         this.context = context;
     }
+
+    WhisperContext getContext() {
+        return context;
+    }
+
     @Override
     public void close() {
         whisper.free(this);
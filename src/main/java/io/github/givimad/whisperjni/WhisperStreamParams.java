@@ -0,0 +1,41 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperStreamParams} class contains the {@link WhisperStreamSession} params.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperStreamParams {
+    /**
+     * Amount of new audio in milliseconds that triggers a new decode of the window.
+     */
+    public int stepMs = 500;
+    /**
+     * Max window length in milliseconds, the window is committed when it's full.
+     */
+    public int lengthMs = 10000;
+    /**
+     * Audio in milliseconds kept before the cut point when the window moves, so words in the boundary are not lost.
+     */
+    public int keepMs = 200;
+    /**
+     * Use the confirmed text as prompt for the next window.
+     */
+    public boolean carryPrompt = true;
+    /**
+     * Max number of characters of confirmed text used as prompt.
+     */
+    public int maxPromptChars = 224;
+    /**
+     * Params used on each decode, a copy is taken when the session is created.
+     */
+    public WhisperFullParams fullParams = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+
+    /**
+     * Public constructor.
+     */
+    public WhisperStreamParams() {
+        fullParams.printProgress = false;
+        fullParams.printTimestamps = false;
+    }
+}
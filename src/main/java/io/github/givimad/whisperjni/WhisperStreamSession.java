@@ -0,0 +1,256 @@
+package io.github.givimad.whisperjni;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The {@link WhisperStreamSession} class transcribes audio pushed in small chunks,
+ * decoding a sliding window over a {@link WhisperState}.
+ * <p>
+ * The window is decoded each time {@link WhisperStreamParams#stepMs} of new audio is available.
+ * All the segments but the last one are considered confirmed, they are emitted once and the window start is moved
+ * after them, keeping {@link WhisperStreamParams#keepMs} of audio as overlap.
+ * The last segment is emitted as partial until it's confirmed by a later decode or the window is full.
+ * Text repeated in the overlap is removed and the confirmed text can be used as prompt for the next decode.
+ * <p>
+ * Segment timestamps are relative to the first pushed sample.
+ * Instances are not thread safe and do not own the state, which should not be used by others while the session is active.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperStreamSession {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLES_PER_TIMESTAMP = SAMPLE_RATE / 100;
+    private static final int MAX_OVERLAP_WORDS = 8;
+    private final WhisperJNI whisper;
+    private final WhisperContext context;
+    private final WhisperState state;
+    private final WhisperFullParams params;
+    private final String initialPrompt;
+    private final boolean carryPrompt;
+    private final int maxPromptChars;
+    private final int stepSamples;
+    private final int keepSamples;
+    private final Listener listener;
+    private final float[] window;
+    private final StringBuilder prompt = new StringBuilder();
+    private int windowSize;
+    private int pendingSamples;
+    private long windowStart;
+    private long lastEmittedEnd;
+    private String lastEmittedText = "";
+
+    /**
+     * Internal session constructor, use {@link WhisperJNI#initStreamSession(WhisperContext, WhisperState, WhisperStreamParams, Listener)}.
+     *
+     * @param whisper  library instance
+     * @param context  the {@link WhisperContext} of the state
+     * @param state    the {@link WhisperState} used to decode
+     * @param params   session params
+     * @param listener segment consumer
+     */
+    protected WhisperStreamSession(WhisperJNI whisper, WhisperContext context, WhisperState state, WhisperStreamParams params, Listener listener) {
+        if (params.stepMs <= 0 || params.lengthMs < params.stepMs) {
+            throw new IllegalArgumentException("stepMs should be greater than zero and not greater than lengthMs");
+        }
+        if (params.keepMs < 0 || params.keepMs >= params.lengthMs) {
+            throw new IllegalArgumentException("keepMs should be positive and lower than lengthMs");
+        }
+        this.whisper = whisper;
+        this.context = context;
+        this.state = state;
+        this.params = new WhisperFullParams(params.fullParams);
+        this.initialPrompt = params.fullParams.initialPrompt;
+        this.carryPrompt = params.carryPrompt;
+        this.maxPromptChars = params.maxPromptChars;
+        this.stepSamples = msToSamples(params.stepMs);
+        this.keepSamples = msToSamples(params.keepMs);
+        this.listener = listener;
+        this.window = new float[msToSamples(params.lengthMs)];
+        // the window is moved explicitly, previous decodes should not be used as context
+        this.params.noContext = true;
+    }
+
+    /**
+     * Appends audio to the session, decoding the window when enough new audio is available.
+     * Segments are emitted to the listener from the calling thread.
+     *
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param offset     offset of the first sample.
+     * @param numSamples the number of audio samples provided.
+     * @throws IOException if the transcription fails.
+     */
+    public void push(float[] samples, int offset, int numSamples) throws IOException {
+        if (offset < 0 || numSamples < 0 || offset + numSamples > samples.length) {
+            throw new IndexOutOfBoundsException("Samples out of array range");
+        }
+        while (numSamples > 0) {
+            int count = Math.min(numSamples, window.length - windowSize);
+            System.arraycopy(samples, offset, window, windowSize, count);
+            windowSize += count;
+            pendingSamples += count;
+            offset += count;
+            numSamples -= count;
+            if (windowSize == window.length) {
+                decode(true);
+            } else if (pendingSamples >= stepSamples) {
+                decode(false);
+            }
+        }
+    }
+
+    /**
+     * Appends audio to the session, decoding the window when enough new audio is available.
+     *
+     * @param samples the audio samples (f32 encoded samples with sample rate 16000).
+     * @throws IOException if the transcription fails.
+     */
+    public void push(float[] samples) throws IOException {
+        push(samples, 0, samples.length);
+    }
+
+    /**
+     * Decodes the remaining audio and emits all its segments as confirmed.
+     * The session can continue receiving audio afterward.
+     *
+     * @throws IOException if the transcription fails.
+     */
+    public void flush() throws IOException {
+        if (windowSize > 0) {
+            decode(true);
+            windowStart += windowSize;
+            windowSize = 0;
+        }
+    }
+
+    /**
+     * Discards the buffered audio and the carried prompt, timestamps restart from zero.
+     */
+    public void reset() {
+        windowSize = 0;
+        pendingSamples = 0;
+        windowStart = 0;
+        lastEmittedEnd = 0;
+        lastEmittedText = "";
+        prompt.setLength(0);
+    }
+
+    private void decode(boolean commit) throws IOException {
+        pendingSamples = 0;
+        params.initialPrompt = buildPrompt();
+        int result = whisper.fullWithState(context, state, params, window, windowSize);
+        if (result != 0) {
+            throw new IOException("Transcription failed with code " + result);
+        }
+        WhisperResult whisperResult = whisper.fullGetResultFromState(state);
+        int nSegments = whisperResult.getNSegments();
+        int nConfirmed = commit ? nSegments : nSegments - 1;
+        long offset = windowStart / SAMPLES_PER_TIMESTAMP;
+        int cut = 0;
+        for (int i = 0; i < nSegments; i++) {
+            long start = offset + whisperResult.getSegmentTimestamp0(i);
+            long end = offset + whisperResult.getSegmentTimestamp1(i);
+            if (i < nConfirmed) {
+                if (end > lastEmittedEnd) {
+                    emit(start, end, whisperResult.getSegmentText(i));
+                }
+                cut = (int) Math.min(windowSize, whisperResult.getSegmentTimestamp1(i) * SAMPLES_PER_TIMESTAMP);
+            } else if (end > lastEmittedEnd) {
+                String text = whisperResult.getSegmentText(i);
+                if (start < lastEmittedEnd) {
+                    text = removeOverlap(text);
+                    start = lastEmittedEnd;
+                }
+                if (!text.isBlank()) {
+                    listener.onPartialSegment(new WhisperSegment(start, end, text));
+                }
+            }
+        }
+        if (commit) {
+            cut = windowSize;
+        }
+        if (cut > 0) {
+            moveWindow(Math.max(0, cut - keepSamples));
+        }
+    }
+
+    private void emit(long start, long end, String text) {
+        if (start < lastEmittedEnd) {
+            // the segment starts in the kept overlap, its first words may have been emitted already
+            text = removeOverlap(text);
+            start = lastEmittedEnd;
+        }
+        lastEmittedEnd = end;
+        if (text.isBlank()) {
+            return;
+        }
+        lastEmittedText = text;
+        if (carryPrompt) {
+            prompt.append(text);
+            if (prompt.length() > maxPromptChars) {
+                int from = prompt.indexOf(" ", prompt.length() - maxPromptChars);
+                prompt.delete(0, from == -1 ? prompt.length() - maxPromptChars : from);
+            }
+        }
+        listener.onSegment(new WhisperSegment(start, end, text));
+    }
+
+    private void moveWindow(int samples) {
+        System.arraycopy(window, samples, window, 0, windowSize - samples);
+        windowSize -= samples;
+        windowStart += samples;
+    }
+
+    private String buildPrompt() {
+        if (prompt.length() == 0) {
+            return initialPrompt;
+        }
+        return initialPrompt == null ? prompt.toString() : initialPrompt + prompt;
+    }
+
+    private String removeOverlap(String text) {
+        String[] previous = lastEmittedText.trim().split("\\s+");
+        String[] current = text.trim().split("\\s+");
+        for (int k = Math.min(MAX_OVERLAP_WORDS, Math.min(previous.length, current.length)); k > 0; k--) {
+            boolean matches = true;
+            for (int i = 0; i < k && matches; i++) {
+                matches = normalize(previous[previous.length - k + i]).equals(normalize(current[i]));
+            }
+            if (matches) {
+                return current.length == k ? "" : " " + String.join(" ", Arrays.copyOfRange(current, k, current.length));
+            }
+        }
+        return text;
+    }
+
+    private static String normalize(String word) {
+        return word.replaceAll("[^\\p{L}\\p{N}]", "").toLowerCase(Locale.ROOT);
+    }
+
+    private static int msToSamples(int ms) {
+        return (int) ((long) ms * SAMPLE_RATE / 1000);
+    }
+
+    /**
+     * The interface {@link WhisperStreamSession.Listener} receives the session segments.
+     *
+     * @author Miguel Álvarez Díez - Initial contribution
+     */
+    public interface Listener {
+        /**
+         * Called once for each confirmed segment.
+         *
+         * @param segment the confirmed segment.
+         */
+        void onSegment(WhisperSegment segment);
+
+        /**
+         * Called with the unconfirmed tail of the window after each decode, its text may change on later calls.
+         *
+         * @param segment the partial segment.
+         */
+        default void onPartialSegment(WhisperSegment segment) {
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperTimings} class contains the time spent on each phase of the last transcription run on a context or state.
+ * <p>
+ * The audio is transcribed in windows of up to 30 seconds, each one encoded and then decoded.
+ * The decoding time includes the token sampling.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperTimings {
+    private final long totalUs;
+    private final long melUs;
+    private final long encodeUs;
+    private final long decodeUs;
+    private final int nWindows;
+    private final int nSampled;
+
+    /**
+     * Internal timings constructor.
+     *
+     * @param values total, mel, encode and decode times in microseconds, followed by the number of windows and sampling steps.
+     */
+    protected WhisperTimings(long[] values) {
+        this.totalUs = values[0];
+        this.melUs = values[1];
+        this.encodeUs = values[2];
+        this.decodeUs = values[3];
+        this.nWindows = (int) values[4];
+        this.nSampled = (int) values[5];
+    }
+
+    /**
+     * Gets the duration of the whole transcription.
+     *
+     * @return time in microseconds
+     */
+    public long getTotalUs() {
+        return totalUs;
+    }
+
+    /**
+     * Gets the time spent computing the mel spectrogram, including the language detection if enabled.
+     *
+     * @return time in microseconds
+     */
+    public long getMelUs() {
+        return melUs;
+    }
+
+    /**
+     * Gets the time spent running the encoder.
+     *
+     * @return time in microseconds
+     */
+    public long getEncodeUs() {
+        return encodeUs;
+    }
+
+    /**
+     * Gets the time spent running the decoder and sampling tokens.
+     *
+     * @return time in microseconds
+     */
+    public long getDecodeUs() {
+        return decodeUs;
+    }
+
+    /**
+     * Gets the number of encoded audio windows.
+     *
+     * @return number of windows
+     */
+    public int getNWindows() {
+        return nWindows;
+    }
+
+    /**
+     * Gets the number of sampling steps, each decoder counts once per step.
+     *
+     * @return number of sampling steps
+     */
+    public int getNSampled() {
+        return nSampled;
+    }
+
+    @Override
+    public String toString() {
+        return "WhisperTimings{totalUs=" + totalUs + ", melUs=" + melUs + ", encodeUs=" + encodeUs
+                + ", decodeUs=" + decodeUs + ", nWindows=" + nWindows + ", nSampled=" + nSampled + "}";
+    }
+}
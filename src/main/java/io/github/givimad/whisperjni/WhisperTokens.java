@@ -0,0 +1,211 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperTokens} class contains the token data of a transcription,
+ * retrieved from the native library in a single call and stored in columns.
+ * <p>
+ * Tokens are indexed globally, use {@link #getSegmentTokenStart(int)} and {@link #getSegmentNTokens(int)}
+ * to locate the tokens of each segment.
+ * The arrays returned by the bulk getters are not copied, they should not be modified.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperTokens {
+    private final int[] segmentOffsets;
+    private final float[] noSpeechProbs;
+    private final int[] ids;
+    private final float[] probs;
+    private final float[] logProbs;
+    private final long[] timestamps;
+
+    /**
+     * Internal tokens constructor, called from the native library.
+     *
+     * @param segmentOffsets index of the first token of each segment, followed by the number of tokens.
+     * @param noSpeechProbs  no speech probability of each segment.
+     * @param ids            token ids.
+     * @param probs          token probabilities.
+     * @param logProbs       token log probabilities.
+     * @param timestamps     start and end timestamp of each token, interleaved.
+     */
+    protected WhisperTokens(int[] segmentOffsets, float[] noSpeechProbs, int[] ids, float[] probs, float[] logProbs, long[] timestamps) {
+        this.segmentOffsets = segmentOffsets;
+        this.noSpeechProbs = noSpeechProbs;
+        this.ids = ids;
+        this.probs = probs;
+        this.logProbs = logProbs;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Gets the number of text segments.
+     *
+     * @return number of segments
+     */
+    public int getNSegments() {
+        return noSpeechProbs.length;
+    }
+
+    /**
+     * Gets the number of tokens of all the segments.
+     *
+     * @return number of tokens
+     */
+    public int getNTokens() {
+        return ids.length;
+    }
+
+    /**
+     * Gets the index of the first token of a segment.
+     *
+     * @param segment the segment index
+     * @return the token index
+     */
+    public int getSegmentTokenStart(int segment) {
+        checkSegment(segment);
+        return segmentOffsets[segment];
+    }
+
+    /**
+     * Gets the number of tokens of a segment.
+     *
+     * @param segment the segment index
+     * @return number of tokens in the segment
+     */
+    public int getSegmentNTokens(int segment) {
+        checkSegment(segment);
+        return segmentOffsets[segment + 1] - segmentOffsets[segment];
+    }
+
+    /**
+     * Gets the probability of the segment not containing speech.
+     *
+     * @param segment the segment index
+     * @return the no speech probability
+     */
+    public float getSegmentNoSpeechProb(int segment) {
+        checkSegment(segment);
+        return noSpeechProbs[segment];
+    }
+
+    /**
+     * Gets the token id.
+     *
+     * @param index the token index
+     * @return the token id
+     */
+    public int getTokenId(int index) {
+        checkToken(index);
+        return ids[index];
+    }
+
+    /**
+     * Gets the token probability.
+     *
+     * @param index the token index
+     * @return the token probability
+     */
+    public float getTokenProb(int index) {
+        checkToken(index);
+        return probs[index];
+    }
+
+    /**
+     * Gets the token log probability.
+     *
+     * @param index the token index
+     * @return the token log probability
+     */
+    public float getTokenLogProb(int index) {
+        checkToken(index);
+        return logProbs[index];
+    }
+
+    /**
+     * Gets the token start timestamp, requires {@link WhisperFullParams#tokenTimestamps}.
+     *
+     * @param index the token index
+     * @return start timestamp of the token, 800 -> 8s
+     */
+    public long getTokenTimestamp0(int index) {
+        checkToken(index);
+        return timestamps[index * 2];
+    }
+
+    /**
+     * Gets the token end timestamp, requires {@link WhisperFullParams#tokenTimestamps}.
+     *
+     * @param index the token index
+     * @return end timestamp of the token, 1050 -> 10.5s
+     */
+    public long getTokenTimestamp1(int index) {
+        checkToken(index);
+        return timestamps[index * 2 + 1];
+    }
+
+    /**
+     * Gets the index of the first token of each segment, followed by the number of tokens.
+     *
+     * @return the segment offsets array
+     */
+    public int[] getSegmentOffsets() {
+        return segmentOffsets;
+    }
+
+    /**
+     * Gets the no speech probability of each segment.
+     *
+     * @return the no speech probabilities array
+     */
+    public float[] getNoSpeechProbs() {
+        return noSpeechProbs;
+    }
+
+    /**
+     * Gets all the token ids.
+     *
+     * @return the token ids array
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    /**
+     * Gets all the token probabilities.
+     *
+     * @return the token probabilities array
+     */
+    public float[] getProbs() {
+        return probs;
+    }
+
+    /**
+     * Gets all the token log probabilities.
+     *
+     * @return the token log probabilities array
+     */
+    public float[] getLogProbs() {
+        return logProbs;
+    }
+
+    /**
+     * Gets the start and end timestamp of each token, interleaved.
+     *
+     * @return the token timestamps array
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    private void checkSegment(int segment) {
+        if (segment < 0 || segment >= getNSegments()) {
+            throw new IndexOutOfBoundsException("Index out of range");
+        }
+    }
+
+    private void checkToken(int index) {
+        if (index < 0 || index >= getNTokens()) {
+            throw new IndexOutOfBoundsException("Index out of range");
+        }
+    }
+}
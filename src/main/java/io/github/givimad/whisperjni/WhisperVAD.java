@@ -0,0 +1,406 @@
+package io.github.givimad.whisperjni;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * The {@link WhisperVAD} class implements an energy based voice activity detector,
+ * used to skip the silence in the audio before transcribing it.
+ * <p>
+ * The audio is analyzed in frames, a frame is considered speech when its energy is over an adaptive noise floor,
+ * frames with a high zero crossing rate need a higher energy as they are usually noise.
+ * The detected regions are padded, joined with a short silence between them and transcribed in a single call,
+ * the result timestamps are mapped back to the original audio.
+ * <p>
+ * Detection does not allocate once the internal buffers have grown to the audio size.
+ * Instances are not thread safe.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperVAD {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLES_PER_TIMESTAMP = SAMPLE_RATE / 100;
+    private static final float NOISE_FLOOR_RISE = 0.01f;
+    private static final float SPEECH_NOISE_FLOOR_RISE = 0.001f;
+    private static final float MIN_DB = -100f;
+    private static final int SPLIT_FRAME_MS = 10;
+    private static final int SPLIT_WINDOW_MS = 100;
+    private final int frameSamples;
+    private final float energyThresholdDb;
+    private final float minEnergyDb;
+    private final float maxZeroCrossingRate;
+    private final int minSpeechSamples;
+    private final int minSilenceSamples;
+    private final int padSamples;
+    private final int gapSamples;
+    private int[] regions = new int[32];
+    private int nRegions;
+    private int[] joinedStarts = new int[16];
+    private float[] joined = new float[0];
+    // detection state
+    private float noiseFloorDb;
+    private int numSamples;
+    private int regionStart;
+    private int lastSpeechEnd;
+
+    /**
+     * Creates a new voice activity detector.
+     *
+     * @param params detector params, defaults are used if null.
+     */
+    public WhisperVAD(WhisperVADParams params) {
+        if (params == null) {
+            params = new WhisperVADParams();
+        }
+        if (params.frameMs <= 0) {
+            throw new IllegalArgumentException("frameMs should be greater than zero");
+        }
+        this.frameSamples = msToSamples(params.frameMs);
+        this.energyThresholdDb = params.energyThresholdDb;
+        this.minEnergyDb = params.minEnergyDb;
+        this.maxZeroCrossingRate = params.maxZeroCrossingRate;
+        this.minSpeechSamples = msToSamples(params.minSpeechMs);
+        this.minSilenceSamples = msToSamples(params.minSilenceMs);
+        this.padSamples = msToSamples(params.padMs);
+        this.gapSamples = msToSamples(params.gapMs);
+    }
+
+    /**
+     * Detects the speech regions in the audio.
+     *
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param offset     offset of the first sample.
+     * @param numSamples the number of audio samples provided.
+     * @return the number of speech regions, positions are relative to offset.
+     */
+    public int detect(float[] samples, int offset, int numSamples) {
+        if (offset < 0 || numSamples < 0 || offset + numSamples > samples.length) {
+            throw new IndexOutOfBoundsException("Samples out of array range");
+        }
+        startDetection(numSamples);
+        for (int frameStart = 0; frameStart < numSamples; frameStart += frameSamples) {
+            int frameEnd = Math.min(numSamples, frameStart + frameSamples);
+            float energy = 0;
+            int crossings = 0;
+            float previous = samples[offset + frameStart];
+            for (int i = offset + frameStart; i < offset + frameEnd; i++) {
+                float sample = samples[i];
+                energy += sample * sample;
+                crossings += (sample >= 0) != (previous >= 0) ? 1 : 0;
+                previous = sample;
+            }
+            analyzeFrame(energy, crossings, frameStart, frameEnd);
+        }
+        return endDetection();
+    }
+
+    /**
+     * Detects the speech regions in the audio.
+     *
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000), read from its position.
+     * @param numSamples the number of audio samples provided.
+     * @return the number of speech regions, positions are relative to the buffer position.
+     */
+    public int detect(FloatBuffer samples, int numSamples) {
+        if (numSamples < 0 || numSamples > samples.remaining()) {
+            throw new IndexOutOfBoundsException("Samples out of buffer range");
+        }
+        int offset = samples.position();
+        startDetection(numSamples);
+        for (int frameStart = 0; frameStart < numSamples; frameStart += frameSamples) {
+            int frameEnd = Math.min(numSamples, frameStart + frameSamples);
+            float energy = 0;
+            int crossings = 0;
+            float previous = samples.get(offset + frameStart);
+            for (int i = offset + frameStart; i < offset + frameEnd; i++) {
+                float sample = samples.get(i);
+                energy += sample * sample;
+                crossings += (sample >= 0) != (previous >= 0) ? 1 : 0;
+                previous = sample;
+            }
+            analyzeFrame(energy, crossings, frameStart, frameEnd);
+        }
+        return endDetection();
+    }
+
+    /**
+     * Gets the number of speech regions found by the last detection.
+     *
+     * @return number of regions
+     */
+    public int getNRegions() {
+        return nRegions;
+    }
+
+    /**
+     * Gets the first sample of a speech region found by the last detection.
+     *
+     * @param index the region index
+     * @return region start, relative to the detection offset
+     */
+    public int getRegionStart(int index) {
+        checkIndex(index);
+        return regions[index * 2];
+    }
+
+    /**
+     * Gets the end sample (exclusive) of a speech region found by the last detection.
+     *
+     * @param index the region index
+     * @return region end, relative to the detection offset
+     */
+    public int getRegionEnd(int index) {
+        checkIndex(index);
+        return regions[index * 2 + 1];
+    }
+
+    /**
+     * Transcribes only the speech regions of the audio using the context state.
+     * The params offset and duration are applied to the joined speech audio.
+     *
+     * @param whisper    library instance.
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a {@link WhisperResult} with timestamps relative to the provided audio.
+     * @throws IOException if the transcription fails.
+     */
+    public WhisperResult full(WhisperJNI whisper, WhisperContext context, WhisperFullParams params, float[] samples, int numSamples) throws IOException {
+        if (detect(samples, 0, numSamples) == 0) {
+            return WhisperResult.empty();
+        }
+        join(samples, null);
+        assertResult(whisper.full(context, params, joined, joinedLength()));
+        return mapResult(whisper.fullGetResult(context));
+    }
+
+    /**
+     * Transcribes only the speech regions of the audio.
+     * The params offset and duration are applied to the joined speech audio.
+     *
+     * @param whisper    library instance.
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param state      the {@link WhisperState} used to transcribe.
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples the number of audio samples provided.
+     * @return a {@link WhisperResult} with timestamps relative to the provided audio.
+     * @throws IOException if the transcription fails.
+     */
+    public WhisperResult fullWithState(WhisperJNI whisper, WhisperContext context, WhisperState state, WhisperFullParams params, float[] samples, int numSamples) throws IOException {
+        if (detect(samples, 0, numSamples) == 0) {
+            return WhisperResult.empty();
+        }
+        join(samples, null);
+        assertResult(whisper.fullWithState(context, state, params, joined, joinedLength()));
+        return mapResult(whisper.fullGetResultFromState(state));
+    }
+
+    /**
+     * Transcribes only the speech regions of the audio.
+     * The params offset and duration are applied to the joined speech audio.
+     *
+     * @param whisper    library instance.
+     * @param context    the {@link WhisperContext} used to transcribe.
+     * @param state      the {@link WhisperState} used to transcribe.
+     * @param params     a {@link WhisperFullParams} instance with the desired configuration.
+     * @param samples    the audio samples (f32 encoded samples with sample rate 16000), read from its position.
+     * @param numSamples the number of audio samples provided.
+     * @return a {@link WhisperResult} with timestamps relative to the buffer position.
+     * @throws IOException if the transcription fails.
+     */
+    public WhisperResult fullWithState(WhisperJNI whisper, WhisperContext context, WhisperState state, WhisperFullParams params, FloatBuffer samples, int numSamples) throws IOException {
+        if (detect(samples, numSamples) == 0) {
+            return WhisperResult.empty();
+        }
+        join(null, samples);
+        assertResult(whisper.fullWithState(context, state, params, joined, joinedLength()));
+        return mapResult(whisper.fullGetResultFromState(state));
+    }
+
+    /**
+     * Splits the audio in chunks at its quietest points.
+     * <p>
+     * Each chunk ends at the lowest energy point of the search range before its max length,
+     * measured over a sliding window of 100 milliseconds, so words are rarely cut.
+     *
+     * @param samples         the audio samples (f32 encoded samples with sample rate 16000).
+     * @param numSamples      the number of audio samples provided.
+     * @param maxChunkSamples max chunk length in samples.
+     * @param searchSamples   length in samples of the range before the max chunk end where the split point is searched.
+     * @return the start sample of each chunk followed by the end of the last one, a single chunk if the audio is short enough.
+     */
+    public static int[] splitAtSilence(float[] samples, int numSamples, int maxChunkSamples, int searchSamples) {
+        if (numSamples < 0 || numSamples > samples.length) {
+            throw new IndexOutOfBoundsException("Samples out of array range");
+        }
+        if (maxChunkSamples <= 0 || searchSamples < 0 || searchSamples >= maxChunkSamples) {
+            throw new IllegalArgumentException("maxChunkSamples should be greater than zero and searchSamples");
+        }
+        int[] bounds = new int[2 + numSamples / (maxChunkSamples - searchSamples)];
+        int nBounds = 1;
+        int start = 0;
+        while (numSamples - start > maxChunkSamples) {
+            start = quietestPoint(samples, start + maxChunkSamples - searchSamples, start + maxChunkSamples);
+            bounds[nBounds++] = start;
+        }
+        bounds[nBounds++] = numSamples;
+        return Arrays.copyOf(bounds, nBounds);
+    }
+
+    private static int quietestPoint(float[] samples, int from, int to) {
+        int windowFrames = SPLIT_WINDOW_MS / SPLIT_FRAME_MS;
+        int frameSamples = msToSamples(SPLIT_FRAME_MS);
+        int nFrames = (to - from) / frameSamples;
+        if (nFrames <= windowFrames) {
+            return to;
+        }
+        float[] frameEnergy = new float[nFrames];
+        for (int frame = 0; frame < nFrames; frame++) {
+            float energy = 0;
+            for (int i = from + frame * frameSamples, end = i + frameSamples; i < end; i++) {
+                energy += samples[i] * samples[i];
+            }
+            frameEnergy[frame] = energy;
+        }
+        double windowEnergy = 0;
+        for (int frame = 0; frame < windowFrames; frame++) {
+            windowEnergy += frameEnergy[frame];
+        }
+        // later points are preferred on ties, so chunks are as long as possible
+        double best = windowEnergy;
+        int bestFrame = 0;
+        for (int frame = windowFrames; frame < nFrames; frame++) {
+            windowEnergy += frameEnergy[frame] - frameEnergy[frame - windowFrames];
+            if (windowEnergy <= best) {
+                best = windowEnergy;
+                bestFrame = frame - windowFrames + 1;
+            }
+        }
+        return from + (bestFrame + windowFrames / 2) * frameSamples;
+    }
+
+    private void startDetection(int numSamples) {
+        this.numSamples = numSamples;
+        nRegions = 0;
+        noiseFloorDb = minEnergyDb;
+        regionStart = -1;
+        lastSpeechEnd = 0;
+    }
+
+    private void analyzeFrame(float energy, int crossings, int frameStart, int frameEnd) {
+        int length = frameEnd - frameStart;
+        float frameDb = energy > 0 ? Math.max(MIN_DB, (float) (10 * Math.log10(energy / length))) : MIN_DB;
+        float frameZeroCrossingRate = (float) crossings / length;
+        float overFloor = frameDb - noiseFloorDb;
+        boolean speech = frameDb > minEnergyDb && overFloor > energyThresholdDb
+                && (frameZeroCrossingRate <= maxZeroCrossingRate || overFloor > energyThresholdDb * 2);
+        if (frameDb < noiseFloorDb) {
+            noiseFloorDb = frameDb;
+        } else {
+            // the floor follows slowly the background level, much slower while there is speech
+            noiseFloorDb += overFloor * (speech ? SPEECH_NOISE_FLOOR_RISE : NOISE_FLOOR_RISE);
+        }
+        if (speech) {
+            if (regionStart < 0) {
+                regionStart = frameStart;
+            }
+            lastSpeechEnd = frameEnd;
+        } else if (regionStart >= 0 && frameEnd - lastSpeechEnd >= minSilenceSamples) {
+            addRegion(regionStart, lastSpeechEnd);
+            regionStart = -1;
+        }
+    }
+
+    private int endDetection() {
+        if (regionStart >= 0) {
+            addRegion(regionStart, lastSpeechEnd);
+            regionStart = -1;
+        }
+        return nRegions;
+    }
+
+    private void addRegion(int start, int end) {
+        if (end - start < minSpeechSamples) {
+            return;
+        }
+        start = Math.max(0, start - padSamples);
+        end = Math.min(numSamples, end + padSamples);
+        if (nRegions > 0 && start <= regions[nRegions * 2 - 1]) {
+            regions[nRegions * 2 - 1] = end;
+            return;
+        }
+        if (regions.length < (nRegions + 1) * 2) {
+            regions = Arrays.copyOf(regions, regions.length * 2);
+        }
+        regions[nRegions * 2] = start;
+        regions[nRegions * 2 + 1] = end;
+        nRegions++;
+    }
+
+    private void join(float[] samples, FloatBuffer buffer) {
+        if (joinedStarts.length < nRegions) {
+            joinedStarts = new int[Math.max(nRegions, joinedStarts.length * 2)];
+        }
+        int length = 0;
+        for (int i = 0; i < nRegions; i++) {
+            joinedStarts[i] = length;
+            length += regions[i * 2 + 1] - regions[i * 2] + (i + 1 < nRegions ? gapSamples : 0);
+        }
+        if (joined.length < length) {
+            joined = new float[length];
+        }
+        for (int i = 0; i < nRegions; i++) {
+            int start = regions[i * 2];
+            int regionLength = regions[i * 2 + 1] - start;
+            if (samples != null) {
+                System.arraycopy(samples, start, joined, joinedStarts[i], regionLength);
+            } else {
+                int position = buffer.position();
+                for (int j = 0; j < regionLength; j++) {
+                    joined[joinedStarts[i] + j] = buffer.get(position + start + j);
+                }
+            }
+            if (i + 1 < nRegions) {
+                Arrays.fill(joined, joinedStarts[i] + regionLength, joinedStarts[i] + regionLength + gapSamples, 0f);
+            }
+        }
+    }
+
+    private int joinedLength() {
+        int last = nRegions - 1;
+        return joinedStarts[last] + regions[last * 2 + 1] - regions[last * 2];
+    }
+
+    private WhisperResult mapResult(WhisperResult result) {
+        return result.mapTimestamps(timestamp -> {
+            long position = timestamp * SAMPLES_PER_TIMESTAMP;
+            int index = Arrays.binarySearch(joinedStarts, 0, nRegions, (int) Math.min(Integer.MAX_VALUE, position));
+            if (index < 0) {
+                index = Math.max(0, -index - 2);
+            }
+            int start = regions[index * 2];
+            int length = regions[index * 2 + 1] - start;
+            long inRegion = Math.max(0, Math.min(length, position - joinedStarts[index]));
+            return (start + inRegion) / SAMPLES_PER_TIMESTAMP;
+        });
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= nRegions) {
+            throw new IndexOutOfBoundsException("Index out of range");
+        }
+    }
+
+    private static void assertResult(int result) throws IOException {
+        if (result != 0) {
+            throw new IOException("Transcription failed with code " + result);
+        }
+    }
+
+    private static int msToSamples(int ms) {
+        return (int) ((long) ms * SAMPLE_RATE / 1000);
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.givimad.whisperjni;
+
+/**
+ * The {@link WhisperVADParams} class contains the {@link WhisperVAD} params.
+ *
+ * @author Miguel Álvarez Díez - Initial contribution
+ */
+public class WhisperVADParams {
+    /**
+     * Analysis frame length in milliseconds.
+     */
+    public int frameMs = 30;
+    /**
+     * Min frame energy over the estimated noise floor, in decibels, to consider a frame as speech.
+     */
+    public float energyThresholdDb = 10f;
+    /**
+     * Frames with lower energy, in decibels relative to full scale, are always considered silence.
+     */
+    public float minEnergyDb = -50f;
+    /**
+     * Frames with a higher zero crossing rate are considered noise unless their energy is clearly above the threshold.
+     */
+    public float maxZeroCrossingRate = 0.35f;
+    /**
+     * Speech regions shorter than this value in milliseconds are discarded.
+     */
+    public int minSpeechMs = 150;
+    /**
+     * Silences shorter than this value in milliseconds do not split speech regions.
+     */
+    public int minSilenceMs = 300;
+    /**
+     * Audio in milliseconds added before and after each speech region.
+     */
+    public int padMs = 200;
+    /**
+     * Silence in milliseconds inserted between the regions when they are joined for transcription.
+     */
+    public int gapMs = 100;
+
+    /**
+     * Public constructor.
+     */
+    public WhisperVADParams() {
+
+    }
+}
@@ -6,16 +6,29 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
 
 
 public class LibraryUtils {
     private static final String TEMP_FOLDER_PREFIX = "whisper-jni-";
+    private static final String CACHE_FOLDER = "whisper-jni-cache";
     private static Path libraryDir = null;
     private LibraryUtils() {
     }
@@ -110,14 +123,132 @@ public class LibraryUtils {
         }
         var libraryPaths = getJarLibraryPaths(logger, libraryDir != null);
         if (libraryDir == null) {
+            // library filename to jar path, in load order
+            Map<String, String> libraries = new LinkedHashMap<>();
             if (!osName.contains("win")) {
-                LibraryUtils.extractLibraryFromJar(libraryPaths.whisperPath, libraryPaths.whisperFilename, logger);
-                LibraryUtils.extractLibraryFromJar(libraryPaths.ggmlPath, libraryPaths.ggmlFilename, logger);
+                libraries.put(libraryPaths.whisperFilename, libraryPaths.whisperPath);
+                libraries.put(libraryPaths.ggmlFilename, libraryPaths.ggmlPath);
+            }
+            libraries.put(libraryPaths.whisperJNIFilename, libraryPaths.whisperJNIPath);
+            if (Boolean.parseBoolean(System.getProperty("io.github.givimad.whisperjni.cache", "true"))) {
+                libraryDir = getCachedLibraryDir(libraries, logger);
+            } else {
+                for (var library : libraries.entrySet()) {
+                    LibraryUtils.extractLibraryFromJar(library.getValue(), library.getKey(), logger);
+                }
             }
-            LibraryUtils.extractLibraryFromJar(libraryPaths.whisperJNIPath, libraryPaths.whisperJNIFilename, logger);
         }
         System.load(libraryDir.resolve(libraryPaths.whisperJNIFilename).toAbsolutePath().toString());
     }
+    /**
+     * Gets a persistent directory with the libraries, extracting them if needed.
+     *
+     * The directory name is the hash of the bundled libraries, so it is reused across restarts and never holds
+     * libraries from a different version. Libraries are extracted to a temporary directory which is renamed once complete,
+     * and a file lock serializes the extraction between processes.
+     *
+     * @param libraries library filenames mapped to their path inside the jar
+     * @param logger library logger
+     * @return the cache directory containing the libraries
+     * @throws IOException If the libraries can not be read or the cache directory can not be written
+     */
+    private static synchronized Path getCachedLibraryDir(Map<String, String> libraries, WhisperJNI.LibraryLogger logger) throws IOException {
+        String cacheDirProperty = System.getProperty("io.github.givimad.whisperjni.cachedir");
+        Path cacheRoot = cacheDirProperty != null ?
+                Paths.get(cacheDirProperty) :
+                Paths.get(System.getProperty("java.io.tmpdir"), CACHE_FOLDER);
+        Files.createDirectories(cacheRoot);
+        String hash = hashLibraries(libraries);
+        Path cacheDir = cacheRoot.resolve(hash);
+        if (Files.isDirectory(cacheDir)) {
+            logger.log("Using cached libraries at " + cacheDir);
+            return cacheDir;
+        }
+        try (var channel = FileChannel.open(cacheRoot.resolve(hash + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                // another process may have finished the extraction while waiting for the lock
+                if (Files.isDirectory(cacheDir)) {
+                    logger.log("Using cached libraries at " + cacheDir);
+                    return cacheDir;
+                }
+                // leftovers of an extraction interrupted by a crash
+                try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(cacheRoot, hash + ".tmp-*")) {
+                    for (Path leftover : leftovers) {
+                        deleteRecursively(leftover);
+                    }
+                }
+                Path tempDir = cacheRoot.resolve(hash + ".tmp-" + System.nanoTime());
+                Files.createDirectory(tempDir);
+                try {
+                    for (var library : libraries.entrySet()) {
+                        logger.log("Extracting " + library.getValue() + " into " + cacheDir.resolve(library.getKey()));
+                        try (var is = openJarResource(library.getValue())) {
+                            Files.copy(is, tempDir.resolve(library.getKey()));
+                        }
+                    }
+                    try {
+                        Files.move(tempDir, cacheDir, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        // the lock is held, so a plain rename is still safe for the other processes
+                        Files.move(tempDir, cacheDir);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    try {
+                        deleteRecursively(tempDir);
+                    } catch (IOException ignored) {}
+                    throw e;
+                }
+            } finally {
+                lock.release();
+            }
+        }
+        return cacheDir;
+    }
+
+    private static String hashLibraries(Map<String, String> libraries) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        for (var library : libraries.entrySet()) {
+            digest.update(library.getKey().getBytes(StandardCharsets.UTF_8));
+            try (var is = openJarResource(library.getValue())) {
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        }
+        var hash = new StringBuilder();
+        for (byte value : Arrays.copyOf(digest.digest(), 16)) {
+            hash.append(String.format("%02x", value));
+        }
+        return hash.toString();
+    }
+
+    private static InputStream openJarResource(String path) throws FileNotFoundException {
+        InputStream is = path == null ? null : LibraryUtils.class.getResourceAsStream(path);
+        if (is == null) {
+            throw new FileNotFoundException("File " + path + " not found.");
+        }
+        return is;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
     private static LibraryPaths getJarLibraryPaths(WhisperJNI.LibraryLogger logger, boolean customLibraryPath) throws IOException {
         LibraryPaths.Builder builder = new LibraryPaths.Builder();
         String osName = System.getProperty("os.name").toLowerCase();
@@ -1,259 +1,1231 @@
+#include <algorithm>
+#include <atomic>
 #include <iostream>
 #include <map>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+#include <cstring>
 #include <jni.h>
 #include "io_github_givimad_whisperjni_WhisperJNI.h"
 #include "whisper.h"
 #include "grammar-parser.h"
+#include "whisper_jni_handles.h"
+#include "whisper_jni_pcm.h"
+#include "whisper_jni_mmap.h"
+#include "whisper_jni_affinity.h"
+#include "whisper_jni_timings.h"
+#include "whisper_jni_log.h"
+#include "whisper_jni_grammars.h"
 
-std::map<int, whisper_context *> contextMap;
-std::map<int, whisper_state *> stateMap;
-std::map<int, grammar_parser::parse_state *> grammarMap;
+// Log lines are filtered and queued here, the java log thread drains them, so logging never calls into the jvm.
+static LogRing logRing;
+// Min severity forwarded to java, -1 when the logger is disabled.
+static std::atomic<int> logMinLevel{-1};
 
-static JavaVM *jvmRef = nullptr;
-static void whisper_log_proxy(enum ggml_log_level level, const char * text, void * user_data) {
-    if(jvmRef) {
-        JNIEnv *env;
-        if (jvmRef->AttachCurrentThread((void**)&env, NULL) != JNI_OK) {
-          return;
-        }
-        jclass whisperJNIClass = env->FindClass("io/github/givimad/whisperjni/WhisperJNI");
-        jmethodID logMethodId = env->GetStaticMethodID(whisperJNIClass, "log", "(Ljava/lang/String;)V");
-        jstring jstr = env->NewStringUTF(text);
-        env->CallStaticVoidMethod(whisperJNIClass, logMethodId, jstr);
-        jvmRef->DetachCurrentThread();
-    }
+enum log_severity
+{
+  LOG_DEBUG = 0,
+  LOG_INFO = 1,
+  LOG_WARN = 2,
+  LOG_ERROR = 3,
+};
+
+static void whisper_log_proxy(enum ggml_log_level level, const char *text, void *user_data)
+{
+  // continuation lines have no level of their own
+  static thread_local int lastSeverity = LOG_INFO;
+  int severity;
+  switch (level) {
+  case GGML_LOG_LEVEL_DEBUG:
+    severity = LOG_DEBUG;
+    break;
+  case GGML_LOG_LEVEL_INFO:
+    severity = LOG_INFO;
+    break;
+  case GGML_LOG_LEVEL_WARN:
+    severity = LOG_WARN;
+    break;
+  case GGML_LOG_LEVEL_ERROR:
+    severity = LOG_ERROR;
+    break;
+  default:
+    severity = lastSeverity;
+    break;
+  }
+  lastSeverity = severity;
+  int minLevel = logMinLevel.load(std::memory_order_relaxed);
+  if (minLevel < 0 || severity < minLevel) {
+    return;
+  }
+  logRing.push(severity, text);
 }
-int getContextId() {
-    int i = 0;
-    while (i++ < 1000) {
-        int id = rand();
-        if(!contextMap.count(id)) {
-            return id;
-        }
-    }
-    throw std::runtime_error("Wrapper error: Unable to get config id");
-}
-int getStateId() {
-    int i = 0;
-    while (i++ < 1000) {
-        int id = rand();
-        if(!stateMap.count(id)) {
-            return id;
-        }
-    }
-    throw std::runtime_error("Wrapper error: Unable to get state id");
-}
-int getGrammarId() {
-    int i = 0;
-    while (i++ < 1000) {
-        int id = rand();
-        if(!grammarMap.count(id)) {
-            return id;
-        }
-    }
-    throw std::runtime_error("Wrapper error: Unable to get grammar id");
+// A context loaded once and shared by all the java contexts created for the same model and params.
+struct shared_model
+{
+  std::string key;
+  whisper_context *ctx;
+  int refs;
+};
+
+static std::mutex sharedModelsMutex;
+static std::map<std::string, shared_model *> sharedModels;
+
+// Native data attached to each java context, the scratch buffer is used by the context default state.
+struct whisper_context_entry
+{
+  whisper_context *ctx;
+  std::vector<float> scratch;
+  shared_model *shared;
+  std::atomic<bool> abort{false};
+  full_timings timings{};
+};
+
+// Native data attached to each java state, the scratch buffer holds converted samples between calls.
+// A positive thread count overrides the one in the params of the calls run on the state,
+// a non empty cpu list pins the calls run on the state to those cpus, it can only be set before the first call.
+struct whisper_state_entry
+{
+  whisper_state *state;
+  std::vector<float> scratch;
+  std::atomic<bool> abort{false};
+  std::atomic<int> nThreads{0};
+  std::mutex cpusMutex{};
+  std::vector<int> cpus{};
+  bool used = false;
+  full_timings timings{};
+};
+
+HandleTable<whisper_context_entry> contexts;
+HandleTable<whisper_state_entry> states;
+// A grammar reference shares the parsed grammar with the cache and the compiled params using it.
+struct whisper_grammar_entry
+{
+  std::shared_ptr<compiled_grammar> grammar;
+};
+
+HandleTable<whisper_grammar_entry> grammars;
+GrammarCache grammarCache;
+HandleTable<struct whisper_full_params_holder> fullParams;
+
+void throwInvalidReference(JNIEnv *env, const char *name)
+{
+  std::string message = std::string("Invalid ") + name + " reference, it may have been released";
+  jclass exClass = env->FindClass("java/lang/IllegalStateException");
+  env->ThrowNew(exClass, message.c_str());
 }
-int insertModel(whisper_context *ctx)
+
+// Resolves a java reference id, throws an IllegalStateException if it is unknown or was released.
+template <typename T>
+T *getReference(JNIEnv *env, const HandleTable<T> &table, jint ref, const char *name)
+{
+  T *value = table.get(ref);
+  if (!value) {
+    throwInvalidReference(env, name);
+  }
+  return value;
+}
+
+// Registers a native pointer, throws a RuntimeException and returns -1 if the table is full.
+template <typename T>
+jint insertReference(JNIEnv *env, HandleTable<T> &table, T *value, const char *name)
 {
-  int ref = getContextId();
-  contextMap.insert({ref, ctx});
+  int ref = table.insert(value);
+  if (ref == -1) {
+    std::string message = std::string("Wrapper error: Unable to get ") + name + " id";
+    jclass exClass = env->FindClass("java/lang/RuntimeException");
+    env->ThrowNew(exClass, message.c_str());
+  }
   return ref;
 }
 
+whisper_context *getContext(JNIEnv *env, jint ref)
+{
+  whisper_context_entry *entry = getReference(env, contexts, ref, "context");
+  return entry ? entry->ctx : nullptr;
+}
+
+whisper_state *getState(JNIEnv *env, jint ref)
+{
+  whisper_state_entry *entry = getReference(env, states, ref, "state");
+  return entry ? entry->state : nullptr;
+}
+
+// Frees the context, shared contexts are only freed when their last reference is released.
+void releaseContext(whisper_context_entry *entry)
+{
+  shared_model *shared = entry->shared;
+  if (!shared) {
+    whisper_free(entry->ctx);
+  } else {
+    std::lock_guard<std::mutex> lock(sharedModelsMutex);
+    if (--shared->refs == 0) {
+      sharedModels.erase(shared->key);
+      whisper_free(shared->ctx);
+      delete shared;
+    }
+  }
+  delete entry;
+}
+
+jint insertContext(JNIEnv *env, whisper_context *context, shared_model *shared)
+{
+  whisper_context_entry *entry = new whisper_context_entry{context, {}, shared};
+  int ctxRef = insertReference(env, contexts, entry, "context");
+  if (ctxRef == -1) {
+    releaseContext(entry);
+  }
+  return ctxRef;
+}
+
+// Field ids are resolved once in JNI_OnLoad, they remain valid while the classes are loaded.
+static struct {
+  jfieldID useGPU;
+  jfieldID useMmap;
+  jfieldID shareModel;
+} contextParamsFields;
+
+static struct {
+  jfieldID strategy;
+  jfieldID nThreads;
+  jfieldID audioCtx;
+  jfieldID nMaxTextCtx;
+  jfieldID offsetMs;
+  jfieldID durationMs;
+  jfieldID language;
+  jfieldID initialPrompt;
+  jfieldID translate;
+  jfieldID noTimestamps;
+  jfieldID noContext;
+  jfieldID singleSegment;
+  jfieldID printSpecial;
+  jfieldID printProgress;
+  jfieldID printRealtime;
+  jfieldID printTimestamps;
+  jfieldID tokenTimestamps;
+  jfieldID detectLanguage;
+  jfieldID suppressBlank;
+  jfieldID suppressNonSpeechTokens;
+  jfieldID temperature;
+  jfieldID maxInitialTs;
+  jfieldID lengthPenalty;
+  jfieldID temperatureInc;
+  jfieldID entropyThold;
+  jfieldID logprobThold;
+  jfieldID noSpeechThold;
+  jfieldID greedyBestOf;
+  jfieldID beamSearchBeamSize;
+  jfieldID beamSearchPatience;
+  jfieldID grammar;
+  jfieldID grammarPenalty;
+  jfieldID newSegmentCallback;
+  jfieldID progressCallback;
+  jfieldID encoderBeginCallback;
+} fullParamsFields;
+
+static struct {
+  jmethodID onNewSegment;
+  jmethodID onProgress;
+  jmethodID onEncoderBegin;
+} callbackMethods;
+
+static struct {
+  jfieldID ref;
+} grammarFields;
+
+static struct {
+  jclass clazz;
+  jmethodID constructor;
+} resultClass;
+
+static struct {
+  jclass clazz;
+  jmethodID constructor;
+} tokensClass;
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
+{
+  JNIEnv *env;
+  if (vm->GetEnv((void **)&env, JNI_VERSION_1_8) != JNI_OK) {
+    return JNI_ERR;
+  }
+  jclass contextParamsJClass = env->FindClass("io/github/givimad/whisperjni/WhisperContextParams");
+  if (!contextParamsJClass) {
+    return JNI_ERR;
+  }
+  contextParamsFields.useGPU = env->GetFieldID(contextParamsJClass, "useGPU", "Z");
+  contextParamsFields.useMmap = env->GetFieldID(contextParamsJClass, "useMmap", "Z");
+  contextParamsFields.shareModel = env->GetFieldID(contextParamsJClass, "shareModel", "Z");
+
+  jclass paramsJClass = env->FindClass("io/github/givimad/whisperjni/WhisperFullParams");
+  if (!paramsJClass) {
+    return JNI_ERR;
+  }
+  fullParamsFields.strategy = env->GetFieldID(paramsJClass, "strategy", "I");
+  fullParamsFields.nThreads = env->GetFieldID(paramsJClass, "nThreads", "I");
+  fullParamsFields.audioCtx = env->GetFieldID(paramsJClass, "audioCtx", "I");
+  fullParamsFields.nMaxTextCtx = env->GetFieldID(paramsJClass, "nMaxTextCtx", "I");
+  fullParamsFields.offsetMs = env->GetFieldID(paramsJClass, "offsetMs", "I");
+  fullParamsFields.durationMs = env->GetFieldID(paramsJClass, "durationMs", "I");
+  fullParamsFields.language = env->GetFieldID(paramsJClass, "language", "Ljava/lang/String;");
+  fullParamsFields.initialPrompt = env->GetFieldID(paramsJClass, "initialPrompt", "Ljava/lang/String;");
+  fullParamsFields.translate = env->GetFieldID(paramsJClass, "translate", "Z");
+  fullParamsFields.noTimestamps = env->GetFieldID(paramsJClass, "noTimestamps", "Z");
+  fullParamsFields.noContext = env->GetFieldID(paramsJClass, "noContext", "Z");
+  fullParamsFields.singleSegment = env->GetFieldID(paramsJClass, "singleSegment", "Z");
+  fullParamsFields.printSpecial = env->GetFieldID(paramsJClass, "printSpecial", "Z");
+  fullParamsFields.printProgress = env->GetFieldID(paramsJClass, "printProgress", "Z");
+  fullParamsFields.printRealtime = env->GetFieldID(paramsJClass, "printRealtime", "Z");
+  fullParamsFields.printTimestamps = env->GetFieldID(paramsJClass, "printTimestamps", "Z");
+  fullParamsFields.tokenTimestamps = env->GetFieldID(paramsJClass, "tokenTimestamps", "Z");
+  fullParamsFields.detectLanguage = env->GetFieldID(paramsJClass, "detectLanguage", "Z");
+  fullParamsFields.suppressBlank = env->GetFieldID(paramsJClass, "suppressBlank", "Z");
+  fullParamsFields.suppressNonSpeechTokens = env->GetFieldID(paramsJClass, "suppressNonSpeechTokens", "Z");
+  fullParamsFields.temperature = env->GetFieldID(paramsJClass, "temperature", "F");
+  fullParamsFields.maxInitialTs = env->GetFieldID(paramsJClass, "maxInitialTs", "F");
+  fullParamsFields.lengthPenalty = env->GetFieldID(paramsJClass, "lengthPenalty", "F");
+  fullParamsFields.temperatureInc = env->GetFieldID(paramsJClass, "temperatureInc", "F");
+  fullParamsFields.entropyThold = env->GetFieldID(paramsJClass, "entropyThold", "F");
+  fullParamsFields.logprobThold = env->GetFieldID(paramsJClass, "logprobThold", "F");
+  fullParamsFields.noSpeechThold = env->GetFieldID(paramsJClass, "noSpeechThold", "F");
+  fullParamsFields.greedyBestOf = env->GetFieldID(paramsJClass, "greedyBestOf", "I");
+  fullParamsFields.beamSearchBeamSize = env->GetFieldID(paramsJClass, "beamSearchBeamSize", "I");
+  fullParamsFields.beamSearchPatience = env->GetFieldID(paramsJClass, "beamSearchPatience", "F");
+  fullParamsFields.grammar = env->GetFieldID(paramsJClass, "grammar", "Lio/github/givimad/whisperjni/WhisperGrammar;");
+  fullParamsFields.grammarPenalty = env->GetFieldID(paramsJClass, "grammarPenalty", "F");
+  fullParamsFields.newSegmentCallback = env->GetFieldID(paramsJClass, "newSegmentCallback", "Lio/github/givimad/whisperjni/WhisperFullParams$NewSegmentCallback;");
+  fullParamsFields.progressCallback = env->GetFieldID(paramsJClass, "progressCallback", "Lio/github/givimad/whisperjni/WhisperFullParams$ProgressCallback;");
+  fullParamsFields.encoderBeginCallback = env->GetFieldID(paramsJClass, "encoderBeginCallback", "Lio/github/givimad/whisperjni/WhisperFullParams$EncoderBeginCallback;");
+
+  jclass newSegmentJClass = env->FindClass("io/github/givimad/whisperjni/WhisperFullParams$NewSegmentCallback");
+  jclass progressJClass = env->FindClass("io/github/givimad/whisperjni/WhisperFullParams$ProgressCallback");
+  jclass encoderBeginJClass = env->FindClass("io/github/givimad/whisperjni/WhisperFullParams$EncoderBeginCallback");
+  if (!newSegmentJClass || !progressJClass || !encoderBeginJClass) {
+    return JNI_ERR;
+  }
+  callbackMethods.onNewSegment = env->GetMethodID(newSegmentJClass, "onNewSegment", "(IJJLjava/lang/String;)V");
+  callbackMethods.onProgress = env->GetMethodID(progressJClass, "onProgress", "(I)V");
+  callbackMethods.onEncoderBegin = env->GetMethodID(encoderBeginJClass, "onEncoderBegin", "()Z");
+
+  jclass grammarJClass = env->FindClass("io/github/givimad/whisperjni/WhisperGrammar");
+  if (!grammarJClass) {
+    return JNI_ERR;
+  }
+  grammarFields.ref = env->GetFieldID(grammarJClass, "ref", "I");
+
+  jclass resultJClass = env->FindClass("io/github/givimad/whisperjni/WhisperResult");
+  if (!resultJClass) {
+    return JNI_ERR;
+  }
+  resultClass.clazz = (jclass)env->NewGlobalRef(resultJClass);
+  resultClass.constructor = env->GetMethodID(resultJClass, "<init>", "([J[B[I)V");
+
+  jclass tokensJClass = env->FindClass("io/github/givimad/whisperjni/WhisperTokens");
+  if (!tokensJClass) {
+    return JNI_ERR;
+  }
+  tokensClass.clazz = (jclass)env->NewGlobalRef(tokensJClass);
+  tokensClass.constructor = env->GetMethodID(tokensJClass, "<init>", "([I[F[I[F[F[J)V");
+  if (env->ExceptionCheck()) {
+    return JNI_ERR;
+  }
+  return JNI_VERSION_1_8;
+}
+
 struct whisper_context_params newWhisperContextParams(JNIEnv *env, jobject jParams)
 {
-  jclass paramsJClass = env->GetObjectClass(jParams);
   struct whisper_context_params params = whisper_context_default_params();
-  params.use_gpu = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "useGPU", "Z"));
+  params.use_gpu = (jboolean)env->GetBooleanField(jParams, contextParamsFields.useGPU);
   return params;
 }
 
-void freeWhisperFullParams(JNIEnv *env, jobject jParams, whisper_full_params params)
+// Holds a whisper_full_params instance together with the memory it points to.
+// The strings are copied so the holder outlives the java call that filled it.
+struct whisper_full_params_holder
 {
-  jclass paramsJClass = env->GetObjectClass(jParams);
-  jstring language = (jstring)env->GetObjectField(jParams, env->GetFieldID(paramsJClass, "language", "Ljava/lang/String;"));
-  if(language) {
-      env->ReleaseStringUTFChars(language, params.language);
+  whisper_full_params params;
+  std::string language;
+  std::string initialPrompt;
+  std::shared_ptr<compiled_grammar> grammar;
+  // java listeners, global references when the holder is compiled
+  jobject newSegmentCallback = nullptr;
+  jobject progressCallback = nullptr;
+  jobject encoderBeginCallback = nullptr;
+  bool globalCallbacks = false;
+
+  whisper_full_params_holder() = default;
+  whisper_full_params_holder(const whisper_full_params_holder &) = delete;
+  whisper_full_params_holder &operator=(const whisper_full_params_holder &) = delete;
+
+  // Deletes the listeners global references, should be called before deleting a compiled holder.
+  void releaseCallbacks(JNIEnv *env)
+  {
+    if (!globalCallbacks) {
+      return;
+    }
+    for (jobject callback : {newSegmentCallback, progressCallback, encoderBeginCallback}) {
+      if (callback) {
+        env->DeleteGlobalRef(callback);
+      }
+    }
+    newSegmentCallback = progressCallback = encoderBeginCallback = nullptr;
   }
-  jstring initialPrompt = (jstring)env->GetObjectField(jParams, env->GetFieldID(paramsJClass, "initialPrompt", "Ljava/lang/String;"));
-  if(initialPrompt) {
-      env->ReleaseStringUTFChars(initialPrompt, params.initial_prompt);
+};
+
+jobject getCallbackField(JNIEnv *env, jobject jParams, jfieldID field, bool globalRef)
+{
+  jobject callback = env->GetObjectField(jParams, field);
+  if (!callback || !globalRef) {
+    return callback;
   }
+  jobject globalCallback = env->NewGlobalRef(callback);
+  env->DeleteLocalRef(callback);
+  return globalCallback;
 }
 
-struct whisper_full_params newWhisperFullParams(JNIEnv *env, jobject jParams)
+std::string getStringField(JNIEnv *env, jobject jObject, jfieldID field, bool *isNull)
 {
-  jclass paramsJClass = env->GetObjectClass(jParams);
+  jstring jText = (jstring)env->GetObjectField(jObject, field);
+  *isNull = jText == NULL;
+  if (*isNull) {
+    return std::string();
+  }
+  const char *chars = env->GetStringUTFChars(jText, NULL);
+  std::string text(chars);
+  env->ReleaseStringUTFChars(jText, chars);
+  env->DeleteLocalRef(jText);
+  return text;
+}
 
-  whisper_sampling_strategy samplingStrategy = (whisper_sampling_strategy)env->GetIntField(jParams, env->GetFieldID(paramsJClass, "strategy", "I"));
-  whisper_full_params params = whisper_full_default_params(samplingStrategy);
+// Fills the holder from a java WhisperFullParams instance.
+// When compiled is true the parsed grammar is shared with the holder and the listeners are kept as global references,
+// so the holder does not depend on the java objects lifetime.
+// Returns false if a java exception was thrown.
+bool loadWhisperFullParams(JNIEnv *env, jobject jParams, whisper_full_params_holder &holder, bool compiled)
+{
+  whisper_sampling_strategy samplingStrategy = (whisper_sampling_strategy)env->GetIntField(jParams, fullParamsFields.strategy);
+  whisper_full_params &params = holder.params;
+  params = whisper_full_default_params(samplingStrategy);
 
-  int nThreads = (jint)env->GetIntField(jParams, env->GetFieldID(paramsJClass, "nThreads", "I"));
+  int nThreads = (jint)env->GetIntField(jParams, fullParamsFields.nThreads);
   if (nThreads > 0)
   {
     params.n_threads = nThreads;
   }
-  params.audio_ctx = (jint)env->GetIntField(jParams, env->GetFieldID(paramsJClass, "audioCtx", "I"));
-  params.n_max_text_ctx = (jint)env->GetIntField(jParams, env->GetFieldID(paramsJClass, "nMaxTextCtx", "I"));
-  params.offset_ms = (jint)env->GetIntField(jParams, env->GetFieldID(paramsJClass, "offsetMs", "I"));
-  params.duration_ms = (jint)env->GetIntField(jParams, env->GetFieldID(paramsJClass, "durationMs", "I"));
-
-  jstring language = (jstring)env->GetObjectField(jParams, env->GetFieldID(paramsJClass, "language", "Ljava/lang/String;"));
-  params.language = language == NULL ? nullptr : env->GetStringUTFChars(language, NULL);
-  jstring initialPrompt = (jstring)env->GetObjectField(jParams, env->GetFieldID(paramsJClass, "initialPrompt", "Ljava/lang/String;"));
-  params.initial_prompt = initialPrompt == NULL ? nullptr : env->GetStringUTFChars(initialPrompt, NULL);
-
-  params.translate = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "translate", "Z"));
-  params.no_timestamps = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "noTimestamps", "Z"));
-  params.no_context = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "noContext", "Z"));
-  params.single_segment = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "singleSegment", "Z"));
-  params.print_special = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "printSpecial", "Z"));
-  params.print_progress = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "printProgress", "Z"));
-  params.print_realtime = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "printRealtime", "Z"));
-  params.print_timestamps = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "printTimestamps", "Z"));
-  params.detect_language = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "detectLanguage", "Z"));
-  params.suppress_blank = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "suppressBlank", "Z"));
-  params.suppress_non_speech_tokens = (jboolean)env->GetBooleanField(jParams, env->GetFieldID(paramsJClass, "suppressNonSpeechTokens", "Z"));
-
-  params.temperature = (jfloat)env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "temperature", "F"));
-  params.max_initial_ts = (jfloat)env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "maxInitialTs", "F"));
-  params.length_penalty = (jfloat)env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "lengthPenalty", "F"));
-  params.temperature_inc = (jfloat)env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "temperatureInc", "F"));
-  params.entropy_thold = (jfloat)env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "entropyThold", "F"));
-  params.logprob_thold = (jfloat)env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "logprobThold", "F"));
-  params.no_speech_thold = (jfloat)env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "noSpeechThold", "F"));
+  params.audio_ctx = (jint)env->GetIntField(jParams, fullParamsFields.audioCtx);
+  params.n_max_text_ctx = (jint)env->GetIntField(jParams, fullParamsFields.nMaxTextCtx);
+  params.offset_ms = (jint)env->GetIntField(jParams, fullParamsFields.offsetMs);
+  params.duration_ms = (jint)env->GetIntField(jParams, fullParamsFields.durationMs);
+
+  bool isNull;
+  holder.language = getStringField(env, jParams, fullParamsFields.language, &isNull);
+  params.language = isNull ? nullptr : holder.language.c_str();
+  holder.initialPrompt = getStringField(env, jParams, fullParamsFields.initialPrompt, &isNull);
+  params.initial_prompt = isNull ? nullptr : holder.initialPrompt.c_str();
+
+  params.translate = (jboolean)env->GetBooleanField(jParams, fullParamsFields.translate);
+  params.no_timestamps = (jboolean)env->GetBooleanField(jParams, fullParamsFields.noTimestamps);
+  params.no_context = (jboolean)env->GetBooleanField(jParams, fullParamsFields.noContext);
+  params.single_segment = (jboolean)env->GetBooleanField(jParams, fullParamsFields.singleSegment);
+  params.print_special = (jboolean)env->GetBooleanField(jParams, fullParamsFields.printSpecial);
+  params.print_progress = (jboolean)env->GetBooleanField(jParams, fullParamsFields.printProgress);
+  params.print_realtime = (jboolean)env->GetBooleanField(jParams, fullParamsFields.printRealtime);
+  params.print_timestamps = (jboolean)env->GetBooleanField(jParams, fullParamsFields.printTimestamps);
+  params.token_timestamps = (jboolean)env->GetBooleanField(jParams, fullParamsFields.tokenTimestamps);
+  params.detect_language = (jboolean)env->GetBooleanField(jParams, fullParamsFields.detectLanguage);
+  params.suppress_blank = (jboolean)env->GetBooleanField(jParams, fullParamsFields.suppressBlank);
+  params.suppress_non_speech_tokens = (jboolean)env->GetBooleanField(jParams, fullParamsFields.suppressNonSpeechTokens);
+
+  params.temperature = (jfloat)env->GetFloatField(jParams, fullParamsFields.temperature);
+  params.max_initial_ts = (jfloat)env->GetFloatField(jParams, fullParamsFields.maxInitialTs);
+  params.length_penalty = (jfloat)env->GetFloatField(jParams, fullParamsFields.lengthPenalty);
+  params.temperature_inc = (jfloat)env->GetFloatField(jParams, fullParamsFields.temperatureInc);
+  params.entropy_thold = (jfloat)env->GetFloatField(jParams, fullParamsFields.entropyThold);
+  params.logprob_thold = (jfloat)env->GetFloatField(jParams, fullParamsFields.logprobThold);
+  params.no_speech_thold = (jfloat)env->GetFloatField(jParams, fullParamsFields.noSpeechThold);
 
   switch (params.strategy)
   {
   case WHISPER_SAMPLING_GREEDY:
   {
-    params.greedy.best_of = (jint)env->GetIntField(jParams, env->GetFieldID(paramsJClass, "greedyBestOf", "I"));
+    params.greedy.best_of = (jint)env->GetIntField(jParams, fullParamsFields.greedyBestOf);
   }
   break;
   case WHISPER_SAMPLING_BEAM_SEARCH:
   {
-    params.beam_search.beam_size = (jint)env->GetIntField(jParams, env->GetFieldID(paramsJClass, "beamSearchBeamSize", "I"));
-    params.beam_search.patience = (jfloat)env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "beamSearchPatience", "F"));
+    params.beam_search.beam_size = (jint)env->GetIntField(jParams, fullParamsFields.beamSearchBeamSize);
+    params.beam_search.patience = (jfloat)env->GetFloatField(jParams, fullParamsFields.beamSearchPatience);
   }
   break;
   }
-  return params;
+
+  holder.globalCallbacks = compiled;
+  holder.newSegmentCallback = getCallbackField(env, jParams, fullParamsFields.newSegmentCallback, compiled);
+  holder.progressCallback = getCallbackField(env, jParams, fullParamsFields.progressCallback, compiled);
+  holder.encoderBeginCallback = getCallbackField(env, jParams, fullParamsFields.encoderBeginCallback, compiled);
+
+  jobject jGrammar = env->GetObjectField(jParams, fullParamsFields.grammar);
+  if(jGrammar) {
+    int grammarRef = env->GetIntField(jGrammar, grammarFields.ref);
+    env->DeleteLocalRef(jGrammar);
+    whisper_grammar_entry *grammarEntry = getReference(env, grammars, grammarRef, "grammar");
+    if (!grammarEntry) {
+      return false;
+    }
+    // the rule pointers were computed on load, sharing the grammar keeps them valid for the holder lifetime
+    holder.grammar = grammarEntry->grammar;
+    if (holder.grammar->hasRoot) {
+      params.grammar_rules   = holder.grammar->rules.data();
+      params.n_grammar_rules = holder.grammar->rules.size();
+      params.i_start_rule    = holder.grammar->rootId;
+      params.grammar_penalty = env->GetFloatField(jParams, fullParamsFields.grammarPenalty);
+    }
+  }
+  return true;
 }
 
-JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_init(JNIEnv *env, jobject thisObject, jstring modelPath, jobject jParams)
+whisper_context *loadContext(const char *path, const whisper_context_params &params, bool useMmap, bool withState)
 {
-  const char *path = env->GetStringUTFChars(modelPath, NULL);
-  struct whisper_context *context = whisper_init_from_file_with_params(path, newWhisperContextParams(env, jParams));
-  env->ReleaseStringUTFChars(modelPath, path);
-  if(!context) {
-    return -1;
+  if (!useMmap) {
+    return withState ?
+        whisper_init_from_file_with_params(path, params) :
+        whisper_init_from_file_with_params_no_state(path, params);
   }
-  return insertModel(context);
+  MappedFile file;
+  if (!file.open(path)) {
+    return nullptr;
+  }
+  // the model data is copied out of the buffer while loading, so the map is released on return
+  // and the loaded weights are not backed by the file
+  return withState ?
+      whisper_init_from_buffer_with_params(file.data(), file.size(), params) :
+      whisper_init_from_buffer_with_params_no_state(file.data(), file.size(), params);
 }
 
-JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_initNoState(JNIEnv *env, jobject thisObject, jstring modelPath, jobject jParams)
+jint initContext(JNIEnv *env, jstring modelPath, jobject jParams, bool withState)
 {
-  const char *path = env->GetStringUTFChars(modelPath, NULL);
-  struct whisper_context *context = whisper_init_from_file_with_params_no_state(path, newWhisperContextParams(env, jParams));
-  env->ReleaseStringUTFChars(modelPath, path);
-  if(!context) {
-    return -1;
+  whisper_context_params params = newWhisperContextParams(env, jParams);
+  bool useMmap = env->GetBooleanField(jParams, contextParamsFields.useMmap);
+  // contexts with a default state can not be shared, as each one transcribes on its own state
+  bool shareModel = !withState && env->GetBooleanField(jParams, contextParamsFields.shareModel);
+  const char *pathChars = env->GetStringUTFChars(modelPath, NULL);
+  std::string path(pathChars);
+  env->ReleaseStringUTFChars(modelPath, pathChars);
+  if (!shareModel) {
+    whisper_context *context = loadContext(path.c_str(), params, useMmap, withState);
+    if (!context) {
+      return -1;
+    }
+    return insertContext(env, context, nullptr);
+  }
+  shared_model *shared;
+  {
+    // the lock is held while loading so concurrent requests for the same model load it once
+    std::lock_guard<std::mutex> lock(sharedModelsMutex);
+    std::string key = path + (params.use_gpu ? "|gpu" : "|cpu");
+    auto found = sharedModels.find(key);
+    if (found != sharedModels.end()) {
+      shared = found->second;
+    } else {
+      whisper_context *context = loadContext(path.c_str(), params, useMmap, false);
+      if (!context) {
+        return -1;
+      }
+      shared = new shared_model{key, context, 0};
+      sharedModels[key] = shared;
+    }
+    shared->refs++;
   }
-  return insertModel(context);
+  return insertContext(env, shared->ctx, shared);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_init(JNIEnv *env, jobject thisObject, jstring modelPath, jobject jParams)
+{
+  return initContext(env, modelPath, jParams, true);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_initNoState(JNIEnv *env, jobject thisObject, jstring modelPath, jobject jParams)
+{
+  return initContext(env, modelPath, jParams, false);
 }
 
 JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_initState(JNIEnv *env, jobject thisObject, jint ctxRef)
 {
-  int stateRef = getStateId();
-  whisper_state *state = whisper_init_state(contextMap.at(ctxRef));
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return -1;
+  }
+  whisper_state *state = whisper_init_state(whisper_ctx);
   if(!state) {
     return -1;
   }
-  stateMap.insert({stateRef, state});
+  whisper_state_entry *entry = new whisper_state_entry{state, {}};
+  int stateRef = insertReference(env, states, entry, "state");
+  if (stateRef == -1) {
+    whisper_free_state(state);
+    delete entry;
+  }
   return stateRef;
 }
 
 JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_initOpenVINOEncoder(JNIEnv *env, jobject thisObject, jint ctxRef, jstring deviceString) {
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return;
+  }
   const char* device = env->GetStringUTFChars(deviceString, NULL);
-  whisper_ctx_init_openvino_encoder(contextMap.at(ctxRef), nullptr, device, nullptr);
+  whisper_ctx_init_openvino_encoder(whisper_ctx, nullptr, device, nullptr);
   env->ReleaseStringUTFChars(deviceString, device);
 }
 
 JNIEXPORT jboolean JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_isMultilingual(JNIEnv *env, jobject thisObject, jint ctxRef)
 {
-  return whisper_is_multilingual(contextMap.at(ctxRef));
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return false;
+  }
+  return whisper_is_multilingual(whisper_ctx);
+}
+
+// The native objects used by a full call, the scratch buffer and the abort flag belong to the state,
+// or to the context when the call runs on its default state.
+struct full_target
+{
+  whisper_context *ctx;
+  whisper_state *state;
+  std::vector<float> *scratch;
+  std::atomic<bool> *abort;
+  int nThreads;
+  std::vector<int> cpus;
+  full_timings *timings;
+};
+
+// Passed as user data to the whisper.cpp callbacks, which run on the thread that called full.
+struct full_callbacks_data
+{
+  JNIEnv *env;
+  const whisper_full_params_holder *holder;
+  std::atomic<bool> *abort;
+  FullTimer *timer;
+};
+
+// Called from the ggml compute threads, so it can only read the flag.
+static bool abortCallback(void *userData)
+{
+  return ((std::atomic<bool> *)userData)->load(std::memory_order_relaxed);
+}
+
+static void newSegmentCallback(whisper_context *ctx, whisper_state *state, int nNew, void *userData)
+{
+  full_callbacks_data *data = (full_callbacks_data *)userData;
+  JNIEnv *env = data->env;
+  int nSegments = whisper_full_n_segments_from_state(state);
+  for (int i = nSegments - nNew; i < nSegments && !env->ExceptionCheck(); i++) {
+    jstring text = env->NewStringUTF(whisper_full_get_segment_text_from_state(state, i));
+    env->CallVoidMethod(data->holder->newSegmentCallback, callbackMethods.onNewSegment, i,
+        (jlong)whisper_full_get_segment_t0_from_state(state, i), (jlong)whisper_full_get_segment_t1_from_state(state, i), text);
+    env->DeleteLocalRef(text);
+  }
+  if (env->ExceptionCheck()) {
+    data->abort->store(true);
+  }
+}
+
+static void progressCallback(whisper_context *ctx, whisper_state *state, int progress, void *userData)
+{
+  full_callbacks_data *data = (full_callbacks_data *)userData;
+  if (!data->env->ExceptionCheck()) {
+    data->env->CallVoidMethod(data->holder->progressCallback, callbackMethods.onProgress, progress);
+  }
+  if (data->env->ExceptionCheck()) {
+    data->abort->store(true);
+  }
+}
+
+static bool encoderBeginCallback(whisper_context *ctx, whisper_state *state, void *userData)
+{
+  full_callbacks_data *data = (full_callbacks_data *)userData;
+  // stop the transcription if a listener has thrown
+  if (data->env->ExceptionCheck()) {
+    return false;
+  }
+  data->timer->windowBegin();
+  if (!data->holder->encoderBeginCallback) {
+    return true;
+  }
+  return data->env->CallBooleanMethod(data->holder->encoderBeginCallback, callbackMethods.onEncoderBegin) && !data->env->ExceptionCheck();
+}
+
+static void logitsFilterCallback(whisper_context *ctx, whisper_state *state, const whisper_token_data *tokens, int nTokens, float *logits, void *userData)
+{
+  ((full_callbacks_data *)userData)->timer->sampled();
+}
+
+int runFull(JNIEnv *env, const full_target &target, const whisper_full_params_holder &holder, const float *samples, int numSamples)
+{
+  // the params are copied so compiled holders can be used concurrently with a different env
+  whisper_full_params params = holder.params;
+  if (target.nThreads > 0) {
+    params.n_threads = target.nThreads;
+  }
+  FullTimer timer;
+  full_callbacks_data callbacksData{env, &holder, target.abort, &timer};
+  params.abort_callback = abortCallback;
+  params.abort_callback_user_data = target.abort;
+  if (holder.newSegmentCallback) {
+    params.new_segment_callback = newSegmentCallback;
+    params.new_segment_callback_user_data = &callbacksData;
+  }
+  if (holder.progressCallback) {
+    params.progress_callback = progressCallback;
+    params.progress_callback_user_data = &callbacksData;
+  }
+  // always installed, they split the call timings
+  params.encoder_begin_callback = encoderBeginCallback;
+  params.encoder_begin_callback_user_data = &callbacksData;
+  params.logits_filter_callback = logitsFilterCallback;
+  params.logits_filter_callback_user_data = &callbacksData;
+  ScopedAffinity affinity(target.cpus);
+  int result = target.state ?
+      whisper_full_with_state(target.ctx, target.state, params, samples, numSamples) :
+      whisper_full(target.ctx, params, samples, numSamples);
+  timer.finish(*target.timings);
+  // an abort requested while idle stops the next call, once a call ends the request is consumed
+  target.abort->store(false);
+  return result;
+}
+
+int runFull(JNIEnv *env, const full_target &target, jobject jParams, const float *samples, int numSamples)
+{
+  whisper_full_params_holder holder;
+  if (!loadWhisperFullParams(env, jParams, holder, false)) {
+    return -1;
+  }
+  return runFull(env, target, holder, samples, numSamples);
+}
+
+// Resolves the context and the optional state references, returns false if a java exception was thrown.
+bool getFullReferences(JNIEnv *env, jint ctxRef, jint stateRef, full_target &target)
+{
+  whisper_context_entry *ctxEntry = getReference(env, contexts, ctxRef, "context");
+  if (!ctxEntry) {
+    return false;
+  }
+  target.ctx = ctxEntry->ctx;
+  if (stateRef == -1) {
+    target.state = nullptr;
+    target.scratch = &ctxEntry->scratch;
+    target.abort = &ctxEntry->abort;
+    target.nThreads = 0;
+    target.timings = &ctxEntry->timings;
+    return true;
+  }
+  whisper_state_entry *stateEntry = getReference(env, states, stateRef, "state");
+  if (!stateEntry) {
+    return false;
+  }
+  target.state = stateEntry->state;
+  target.scratch = &stateEntry->scratch;
+  target.abort = &stateEntry->abort;
+  target.nThreads = stateEntry->nThreads.load();
+  target.timings = &stateEntry->timings;
+  std::lock_guard<std::mutex> lock(stateEntry->cpusMutex);
+  target.cpus = stateEntry->cpus;
+  stateEntry->used = true;
+  return true;
+}
+
+const float *getDirectSamples(JNIEnv *env, jobject samples, jint offset, jint numSamples)
+{
+  float *samplesPointer = (float *)env->GetDirectBufferAddress(samples);
+  if (!samplesPointer) {
+    jclass exClass = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exClass, "Samples buffer is not a direct buffer");
+    return nullptr;
+  }
+  jlong capacity = env->GetDirectBufferCapacity(samples);
+  if (offset < 0 || numSamples < 0 || (jlong)offset + numSamples > capacity) {
+    jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
+    env->ThrowNew(exClass, "Samples out of buffer range");
+    return nullptr;
+  }
+  return samplesPointer + offset;
+}
+
+jint fullFromArray(JNIEnv *env, jint ctxRef, jint stateRef, jobject jParams, jfloatArray samples, jint numSamples)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  jfloat *samplesPointer = env->GetFloatArrayElements(samples, NULL);
+  int result = runFull(env, target, jParams, samplesPointer, numSamples);
+  // samples are only read, skip copying them back into the java array
+  env->ReleaseFloatArrayElements(samples, samplesPointer, JNI_ABORT);
+  return result;
+}
+
+jint fullFromBuffer(JNIEnv *env, jint ctxRef, jint stateRef, jobject jParams, jobject samples, jint offset, jint numSamples)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  const float *samplesPointer = getDirectSamples(env, samples, offset, numSamples);
+  if (!samplesPointer) {
+    return -1;
+  }
+  return runFull(env, target, jParams, samplesPointer, numSamples);
+}
+
+jint fullCompiledFromArray(JNIEnv *env, jint ctxRef, jint stateRef, jint paramsRef, jfloatArray samples, jint numSamples)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  whisper_full_params_holder *holder = getReference(env, fullParams, paramsRef, "params");
+  if (!holder) {
+    return -1;
+  }
+  jfloat *samplesPointer = env->GetFloatArrayElements(samples, NULL);
+  int result = runFull(env, target, *holder, samplesPointer, numSamples);
+  env->ReleaseFloatArrayElements(samples, samplesPointer, JNI_ABORT);
+  return result;
+}
+
+jint fullCompiledFromBuffer(JNIEnv *env, jint ctxRef, jint stateRef, jint paramsRef, jobject samples, jint offset, jint numSamples)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  whisper_full_params_holder *holder = getReference(env, fullParams, paramsRef, "params");
+  if (!holder) {
+    return -1;
+  }
+  const float *samplesPointer = getDirectSamples(env, samples, offset, numSamples);
+  if (!samplesPointer) {
+    return -1;
+  }
+  return runFull(env, target, *holder, samplesPointer, numSamples);
 }
 
 JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_full(JNIEnv *env, jobject thisObject, jint ctxRef, jobject jParams, jfloatArray samples, jint numSamples)
 {
-    whisper_full_params params = newWhisperFullParams(env, jParams);
-    // I was unable to handle the grammar inside the newWhisperFullParams fn
-    jclass paramsJClass = env->GetObjectClass(jParams);
-    jobject jGrammar = env->GetObjectField(jParams, env->GetFieldID(paramsJClass, "grammar", "Lio/github/givimad/whisperjni/WhisperGrammar;"));
-    float grammarPenalty = env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "grammarPenalty", "F"));
-    std::vector<const whisper_grammar_element *> grammar_rules; // I don't know why, this one needs to be declared outside the 'if' statement.
-    if(jGrammar) {
-        jclass grammarJClass = env->GetObjectClass(jGrammar);
-        int grammarRef = env->GetIntField(jGrammar, env->GetFieldID(grammarJClass, "ref", "I"));
-        grammar_parser::parse_state* grammar_parsed = grammarMap.at(grammarRef);
-        grammar_rules = grammar_parsed->c_rules();
-        if (!grammar_parsed->rules.empty() && grammar_parsed->symbol_ids.find("root") != grammar_parsed->symbol_ids.end()) {
-            params.grammar_rules   = grammar_rules.data();
-            params.n_grammar_rules = grammar_rules.size();
-            params.i_start_rule    = grammar_parsed->symbol_ids.at("root");
-            params.grammar_penalty = grammarPenalty;
-        }
-    }
+  return fullFromArray(env, ctxRef, -1, jParams, samples, numSamples);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullWithState(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jfloatArray samples, jint numSamples)
+{
+  return fullFromArray(env, ctxRef, stateRef, jParams, samples, numSamples);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullDirect(JNIEnv *env, jobject thisObject, jint ctxRef, jobject jParams, jobject samples, jint offset, jint numSamples)
+{
+  return fullFromBuffer(env, ctxRef, -1, jParams, samples, offset, numSamples);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullWithStateDirect(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jobject samples, jint offset, jint numSamples)
+{
+  return fullFromBuffer(env, ctxRef, stateRef, jParams, samples, offset, numSamples);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_compileFullParams(JNIEnv *env, jobject thisObject, jobject jParams)
+{
+  whisper_full_params_holder *holder = new whisper_full_params_holder();
+  if (!loadWhisperFullParams(env, jParams, *holder, true)) {
+    holder->releaseCallbacks(env);
+    delete holder;
+    return -1;
+  }
+  int paramsRef = insertReference(env, fullParams, holder, "params");
+  if (paramsRef == -1) {
+    holder->releaseCallbacks(env);
+    delete holder;
+  }
+  return paramsRef;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullCompiled(JNIEnv *env, jobject thisObject, jint ctxRef, jint paramsRef, jfloatArray samples, jint numSamples)
+{
+  return fullCompiledFromArray(env, ctxRef, -1, paramsRef, samples, numSamples);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullWithStateCompiled(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jint paramsRef, jfloatArray samples, jint numSamples)
+{
+  return fullCompiledFromArray(env, ctxRef, stateRef, paramsRef, samples, numSamples);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullCompiledDirect(JNIEnv *env, jobject thisObject, jint ctxRef, jint paramsRef, jobject samples, jint offset, jint numSamples)
+{
+  return fullCompiledFromBuffer(env, ctxRef, -1, paramsRef, samples, offset, numSamples);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullWithStateCompiledDirect(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jint paramsRef, jobject samples, jint offset, jint numSamples)
+{
+  return fullCompiledFromBuffer(env, ctxRef, stateRef, paramsRef, samples, offset, numSamples);
+}
+
+// Runs the transcription using the java params, or the compiled params reference if they are null.
+int runFull(JNIEnv *env, const full_target &target, jobject jParams, jint paramsRef, const float *samples, int numSamples)
+{
+  if (jParams) {
+    return runFull(env, target, jParams, samples, numSamples);
+  }
+  whisper_full_params_holder *holder = getReference(env, fullParams, paramsRef, "params");
+  if (!holder) {
+    return -1;
+  }
+  return runFull(env, target, *holder, samples, numSamples);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullPCM16(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jint paramsRef, jshortArray samples, jint numSamples)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  if (target.scratch->size() < (size_t)numSamples) {
+    target.scratch->resize(numSamples);
+  }
+  // the conversion does not call back into java, so the array can be accessed without copying it
+  void *samplesPointer = env->GetPrimitiveArrayCritical(samples, NULL);
+  if (!samplesPointer) {
+    return -1;
+  }
+  convertPCM(samplesPointer, PCM16, false, numSamples, 1, target.scratch->data());
+  env->ReleasePrimitiveArrayCritical(samples, samplesPointer, JNI_ABORT);
+  return runFull(env, target, jParams, paramsRef, target.scratch->data(), numSamples);
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullPCMDirect(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jint paramsRef, jobject samples, jint offset, jint numFrames, jint format, jint channels, jboolean swapBytes)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  uint8_t *samplesPointer = (uint8_t *)env->GetDirectBufferAddress(samples);
+  if (!samplesPointer) {
+    jclass exClass = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exClass, "Samples buffer is not a direct buffer");
+    return -1;
+  }
+  size_t sampleSize = pcmSampleSize(format);
+  if (sampleSize == 0 || channels < 1) {
+    jclass exClass = env->FindClass("java/lang/IllegalArgumentException");
+    env->ThrowNew(exClass, "Unsupported pcm format");
+    return -1;
+  }
+  jlong capacity = env->GetDirectBufferCapacity(samples);
+  if (offset < 0 || numFrames < 0 || (jlong)offset + (jlong)numFrames * channels * (jlong)sampleSize > capacity) {
+    jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
+    env->ThrowNew(exClass, "Samples out of buffer range");
+    return -1;
+  }
+  if (target.scratch->size() < (size_t)numFrames) {
+    target.scratch->resize(numFrames);
+  }
+  convertPCM(samplesPointer + offset, format, swapBytes, numFrames, channels, target.scratch->data());
+  return runFull(env, target, jParams, paramsRef, target.scratch->data(), numFrames);
+}
+
+// Threads for the calls that do not take params, the state override or the whisper_full_default_params default.
+int targetThreads(const full_target &target)
+{
+  return target.nThreads > 0 ? target.nThreads : std::min(4, (int)std::thread::hardware_concurrency());
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_pcmToMel(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jfloatArray samples, jint numSamples)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  ScopedAffinity affinity(target.cpus);
+  jfloat *samplesPointer = env->GetFloatArrayElements(samples, NULL);
+  int result = whisper_pcm_to_mel_with_state(target.ctx, target.state, samplesPointer, numSamples, targetThreads(target));
+  env->ReleaseFloatArrayElements(samples, samplesPointer, JNI_ABORT);
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setMel(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jfloatArray mel, jint nLen, jint nMel)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  jfloat *melPointer = env->GetFloatArrayElements(mel, NULL);
+  int result = whisper_set_mel_with_state(target.ctx, target.state, melPointer, nLen, nMel);
+  env->ReleaseFloatArrayElements(mel, melPointer, JNI_ABORT);
+  return result;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_encode(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jint offset)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  ScopedAffinity affinity(target.cpus);
+  return whisper_encode_with_state(target.ctx, target.state, offset, targetThreads(target));
+}
 
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullFromMel(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jint paramsRef)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return -1;
+  }
+  // whisper_full_with_state only computes the mel spectrogram when it receives samples
+  return runFull(env, target, jParams, paramsRef, nullptr, 0);
+}
+
+JNIEXPORT jfloatArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_detectLanguage(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jfloatArray samples, jint numSamples, jint offsetMs)
+{
+  full_target target;
+  if (!getFullReferences(env, ctxRef, stateRef, target)) {
+    return NULL;
+  }
+  int nThreads = targetThreads(target);
+  std::vector<float> probs(whisper_lang_max_id() + 1);
+  int result;
+  {
+    ScopedAffinity affinity(target.cpus);
     jfloat *samplesPointer = env->GetFloatArrayElements(samples, NULL);
-    int result = whisper_full(contextMap.at(ctxRef), params, samplesPointer, numSamples);
-    freeWhisperFullParams(env, jParams, params);
-    env->ReleaseFloatArrayElements(samples, samplesPointer, 0);
-    return result;
+    // only the mel spectrogram and the encoder for the window at the offset are computed, followed by a single decoder step
+    result = whisper_pcm_to_mel_with_state(target.ctx, target.state, samplesPointer, numSamples, nThreads);
+    env->ReleaseFloatArrayElements(samples, samplesPointer, JNI_ABORT);
+    if (result == 0) {
+      result = whisper_lang_auto_detect_with_state(target.ctx, target.state, offsetMs, nThreads, probs.data());
+    }
+  }
+  if (result < 0) {
+    std::string message = "Language detection failed with code " + std::to_string(result);
+    jclass exClass = env->FindClass("java/lang/RuntimeException");
+    env->ThrowNew(exClass, message.c_str());
+    return NULL;
+  }
+  jfloatArray jProbs = env->NewFloatArray((jsize)probs.size());
+  if (jProbs) {
+    env->SetFloatArrayRegion(jProbs, 0, (jsize)probs.size(), probs.data());
+  }
+  return jProbs;
 }
 
-JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullWithState(JNIEnv *env, jobject thisObject, jint ctxRef, jint stateRef, jobject jParams, jfloatArray samples, jint numSamples)
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_langMaxId(JNIEnv *env, jobject thisObject)
 {
-    whisper_full_params params = newWhisperFullParams(env, jParams);
-    // I was unable to handle the grammar inside the newWhisperFullParams fn
-    jclass paramsJClass = env->GetObjectClass(jParams);
-    jobject jGrammar = env->GetObjectField(jParams, env->GetFieldID(paramsJClass, "grammar", "Lio/github/givimad/whisperjni/WhisperGrammar;"));
-    float grammarPenalty = env->GetFloatField(jParams, env->GetFieldID(paramsJClass, "grammarPenalty", "F"));
-    std::vector<const whisper_grammar_element *> grammar_rules; // I don't know why, this one needs to be declared outside the 'if' statement.
-    if(jGrammar) {
-      jclass grammarJClass = env->GetObjectClass(jGrammar);
-      int grammarRef = env->GetIntField(jGrammar, env->GetFieldID(grammarJClass, "ref", "I"));
-      grammar_parser::parse_state* grammar_parsed = grammarMap.at(grammarRef);
-      grammar_rules = grammar_parsed->c_rules();
-      if (!grammar_parsed->rules.empty() && grammar_parsed->symbol_ids.find("root") != grammar_parsed->symbol_ids.end()) {
-          params.grammar_rules   = grammar_rules.data();
-          params.n_grammar_rules = grammar_rules.size();
-          params.i_start_rule    = grammar_parsed->symbol_ids.at("root");
-          params.grammar_penalty = grammarPenalty;
-      }
+  return whisper_lang_max_id();
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_langId(JNIEnv *env, jobject thisObject, jstring lang)
+{
+  const char *langChars = env->GetStringUTFChars(lang, NULL);
+  int id = whisper_lang_id(langChars);
+  env->ReleaseStringUTFChars(lang, langChars);
+  return id;
+}
+
+JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_langStr(JNIEnv *env, jobject thisObject, jint id, jboolean fullName)
+{
+  // whisper.cpp logs an error for unknown ids, so those are filtered here
+  if (id < 0 || id > whisper_lang_max_id()) {
+    return NULL;
+  }
+  const char *text = fullName ? whisper_lang_str_full(id) : whisper_lang_str(id);
+  return text ? env->NewStringUTF(text) : NULL;
+}
+
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setContextAbort(JNIEnv *env, jobject thisObject, jint ctxRef, jboolean abort)
+{
+  whisper_context_entry *entry = getReference(env, contexts, ctxRef, "context");
+  if (!entry) {
+    return;
+  }
+  entry->abort.store(abort);
+}
+
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setStateAbort(JNIEnv *env, jobject thisObject, jint stateRef, jboolean abort)
+{
+  whisper_state_entry *entry = getReference(env, states, stateRef, "state");
+  if (!entry) {
+    return;
+  }
+  entry->abort.store(abort);
+}
+
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setStateThreads(JNIEnv *env, jobject thisObject, jint stateRef, jint nThreads)
+{
+  whisper_state_entry *entry = getReference(env, states, stateRef, "state");
+  if (!entry) {
+    return;
+  }
+  entry->nThreads.store(nThreads);
+}
+
+JNIEXPORT jboolean JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setStateAffinity(JNIEnv *env, jobject thisObject, jint stateRef, jintArray cpus)
+{
+  whisper_state_entry *entry = getReference(env, states, stateRef, "state");
+  if (!entry) {
+    return false;
+  }
+  std::vector<int> cpuList;
+  if (cpus) {
+    cpuList.resize(env->GetArrayLength(cpus));
+    env->GetIntArrayRegion(cpus, 0, (jsize)cpuList.size(), (jint *)cpuList.data());
+  }
+  if (!cpuList.empty() && !affinitySupported()) {
+    return false;
+  }
+  std::lock_guard<std::mutex> lock(entry->cpusMutex);
+  if (entry->used) {
+    // the compute threads that already exist keep their affinity
+    env->ThrowNew(env->FindClass("java/lang/IllegalStateException"), "The state affinity can only be set before its first use");
+    return false;
+  }
+  entry->cpus = cpuList;
+  return true;
+}
+
+JNIEXPORT jboolean JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setThreadAffinity(JNIEnv *env, jobject thisObject, jintArray cpus)
+{
+  std::vector<int> cpuList(env->GetArrayLength(cpus));
+  env->GetIntArrayRegion(cpus, 0, (jsize)cpuList.size(), (jint *)cpuList.data());
+  return setThreadAffinity(cpuList);
+}
+
+JNIEXPORT jintArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_getThreadAffinity(JNIEnv *env, jobject thisObject)
+{
+  std::vector<int> cpus = getThreadAffinity();
+  jintArray result = env->NewIntArray((jsize)cpus.size());
+  if (result) {
+    env->SetIntArrayRegion(result, 0, (jsize)cpus.size(), (const jint *)cpus.data());
+  }
+  return result;
+}
+
+struct compute_affinity_data
+{
+  std::mutex mutex;
+  std::vector<bool> cpus;
+};
+
+// Runs on every ggml compute thread.
+static void computeAffinityOp(struct ggml_tensor *dst, const struct ggml_tensor *a, int ith, int nth, void *userdata)
+{
+  compute_affinity_data *data = (compute_affinity_data *)userdata;
+  std::vector<int> cpus = getThreadAffinity();
+  std::lock_guard<std::mutex> lock(data->mutex);
+  for (int cpu : cpus) {
+    if (cpu >= (int)data->cpus.size()) {
+      data->cpus.resize(cpu + 1);
     }
-    jfloat *samplesPointer = env->GetFloatArrayElements(samples, NULL);
-    int result = whisper_full_with_state(contextMap.at(ctxRef), stateMap.at(stateRef), params, samplesPointer, numSamples);
-    freeWhisperFullParams(env, jParams, params);
-    env->ReleaseFloatArrayElements(samples, samplesPointer, 0);
-    return result;
+    data->cpus[cpu] = true;
+  }
+}
+
+JNIEXPORT jintArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_getComputeAffinity(JNIEnv *env, jobject thisObject, jint stateRef, jint nThreads)
+{
+  whisper_state_entry *entry = getReference(env, states, stateRef, "state");
+  if (!entry) {
+    return NULL;
+  }
+  std::vector<int> stateCpus;
+  {
+    std::lock_guard<std::mutex> lock(entry->cpusMutex);
+    stateCpus = entry->cpus;
+  }
+  // a single custom op graph, computed like the transcriptions run on the state
+  ggml_init_params initParams = {ggml_tensor_overhead() * 4 + ggml_graph_overhead() + 1024 * 1024, NULL, false};
+  ggml_context *ggmlCtx = ggml_init(initParams);
+  if (!ggmlCtx) {
+    env->ThrowNew(env->FindClass("java/lang/RuntimeException"), "Unable to allocate the compute context");
+    return NULL;
+  }
+  compute_affinity_data data;
+  ggml_tensor *input = ggml_new_tensor_1d(ggmlCtx, GGML_TYPE_F32, 1);
+  ggml_tensor *output = ggml_map_custom1(ggmlCtx, input, computeAffinityOp, GGML_N_TASKS_MAX, &data);
+  ggml_cgraph *graph = ggml_new_graph(ggmlCtx);
+  ggml_build_forward_expand(graph, output);
+  enum ggml_status status;
+  {
+    ScopedAffinity affinity(stateCpus);
+    status = ggml_graph_compute_with_ctx(ggmlCtx, graph, nThreads);
+  }
+  ggml_free(ggmlCtx);
+  if (status != GGML_STATUS_SUCCESS) {
+    env->ThrowNew(env->FindClass("java/lang/RuntimeException"), ("Compute failed with status " + std::to_string(status)).c_str());
+    return NULL;
+  }
+  std::vector<int> cpus;
+  for (size_t cpu = 0; cpu < data.cpus.size(); cpu++) {
+    if (data.cpus[cpu]) {
+      cpus.push_back((int)cpu);
+    }
+  }
+  jintArray result = env->NewIntArray((jsize)cpus.size());
+  if (result) {
+    env->SetIntArrayRegion(result, 0, (jsize)cpus.size(), (const jint *)cpus.data());
+  }
+  return result;
 }
 
 JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullNSegments(JNIEnv *env, jobject thisObject, jint ctxRef)
 {
-  return whisper_full_n_segments(contextMap.at(ctxRef));
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return 0;
+  }
+  return whisper_full_n_segments(whisper_ctx);
 }
 
 JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullNSegmentsFromState(JNIEnv *env, jobject thisObject, jint stateRef)
 {
-  return whisper_full_n_segments_from_state(stateMap.at(stateRef));
+  whisper_state *state = getState(env, stateRef);
+  if (!state) {
+    return 0;
+  }
+  return whisper_full_n_segments_from_state(state);
+}
+
+jlongArray timingsToArray(JNIEnv *env, const full_timings &timings)
+{
+  jlong values[] = {timings.totalUs, timings.melUs, timings.encodeUs, timings.decodeUs, timings.nWindows, timings.nSampled};
+  jlongArray result = env->NewLongArray(6);
+  if (result) {
+    env->SetLongArrayRegion(result, 0, 6, values);
+  }
+  return result;
+}
+
+JNIEXPORT jlongArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetTimings(JNIEnv *env, jobject thisObject, jint ctxRef)
+{
+  whisper_context_entry *entry = getReference(env, contexts, ctxRef, "context");
+  if (!entry) {
+    return nullptr;
+  }
+  return timingsToArray(env, entry->timings);
+}
+
+JNIEXPORT jlongArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetTimingsFromState(JNIEnv *env, jobject thisObject, jint stateRef)
+{
+  whisper_state_entry *entry = getReference(env, states, stateRef, "state");
+  if (!entry) {
+    return nullptr;
+  }
+  return timingsToArray(env, entry->timings);
 }
 
 JNIEXPORT jlong JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegmentTimestamp0(JNIEnv *env, jobject thisObject, jint ctxRef, jint index)
 {
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return 0L;
+  }
   int nSegments = whisper_full_n_segments(whisper_ctx);
-  if (nSegments < index + 1)
+  if (index < 0 || nSegments < index + 1)
   {
     jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
     env->ThrowNew(exClass, "Index out of range");
@@ -264,9 +1236,12 @@ JNIEXPORT jlong JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegm
 
 JNIEXPORT jlong JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegmentTimestamp1(JNIEnv *env, jobject thisObject, jint ctxRef, jint index)
 {
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return 0L;
+  }
   int nSegments = whisper_full_n_segments(whisper_ctx);
-  if (nSegments < index + 1)
+  if (index < 0 || nSegments < index + 1)
   {
     jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
     env->ThrowNew(exClass, "Index out of range");
@@ -277,9 +1252,12 @@ JNIEXPORT jlong JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegm
 
 JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegmentText(JNIEnv *env, jobject thisObject, jint ctxRef, jint index)
 {
-  whisper_context *whisper_ctx = contextMap.at(ctxRef);
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return NULL;
+  }
   int nSegments = whisper_full_n_segments(whisper_ctx);
-  if (nSegments < index + 1)
+  if (index < 0 || nSegments < index + 1)
   {
     jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
     env->ThrowNew(exClass, "Index out of range");
@@ -291,9 +1269,12 @@ JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSe
 
 JNIEXPORT jlong JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegmentTimestamp0FromState(JNIEnv *env, jobject thisObject, jint stateRef, jint index)
 {
-  whisper_state *state = stateMap.at(stateRef);
+  whisper_state *state = getState(env, stateRef);
+  if (!state) {
+    return 0L;
+  }
   int nSegments = whisper_full_n_segments_from_state(state);
-  if (nSegments < index + 1)
+  if (index < 0 || nSegments < index + 1)
   {
     jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
     env->ThrowNew(exClass, "Index out of range");
@@ -304,9 +1285,12 @@ JNIEXPORT jlong JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegm
 
 JNIEXPORT jlong JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegmentTimestamp1FromState(JNIEnv *env, jobject thisObject, jint stateRef, jint index)
 {
-  whisper_state *state = stateMap.at(stateRef);
+  whisper_state *state = getState(env, stateRef);
+  if (!state) {
+    return 0L;
+  }
   int nSegments = whisper_full_n_segments_from_state(state);
-  if (nSegments < index + 1)
+  if (index < 0 || nSegments < index + 1)
   {
     jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
     env->ThrowNew(exClass, "Index out of range");
@@ -317,9 +1301,12 @@ JNIEXPORT jlong JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegm
 
 JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegmentTextFromState(JNIEnv *env, jobject thisObject, jint stateRef, jint index)
 {
-  whisper_state *state = stateMap.at(stateRef);
+  whisper_state *state = getState(env, stateRef);
+  if (!state) {
+    return NULL;
+  }
   int nSegments = whisper_full_n_segments_from_state(state);
-  if (nSegments < index + 1)
+  if (index < 0 || nSegments < index + 1)
   {
     jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
     env->ThrowNew(exClass, "Index out of range");
@@ -329,21 +1316,231 @@ JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSe
   return env->NewStringUTF(text);
 }
 
+// Builds a WhisperResult instance, copying all the segments in one pass.
+template <typename T0, typename T1, typename Text>
+jobject newWhisperResult(JNIEnv *env, int nSegments, T0 getT0, T1 getT1, Text getText)
+{
+  std::vector<jlong> timestamps(nSegments * 2);
+  std::vector<jint> textOffsets(nSegments + 1);
+  std::string text;
+  for (int i = 0; i < nSegments; i++) {
+    timestamps[i * 2] = getT0(i);
+    timestamps[i * 2 + 1] = getT1(i);
+    textOffsets[i] = (jint)text.size();
+    text.append(getText(i));
+  }
+  textOffsets[nSegments] = (jint)text.size();
+  jlongArray jTimestamps = env->NewLongArray(nSegments * 2);
+  jbyteArray jText = env->NewByteArray(text.size());
+  jintArray jTextOffsets = env->NewIntArray(nSegments + 1);
+  if (!jTimestamps || !jText || !jTextOffsets) {
+    return NULL;
+  }
+  env->SetLongArrayRegion(jTimestamps, 0, nSegments * 2, timestamps.data());
+  env->SetByteArrayRegion(jText, 0, text.size(), (const jbyte *)text.data());
+  env->SetIntArrayRegion(jTextOffsets, 0, nSegments + 1, textOffsets.data());
+  return env->NewObject(resultClass.clazz, resultClass.constructor, jTimestamps, jText, jTextOffsets);
+}
+
+JNIEXPORT jobject JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetResult(JNIEnv *env, jobject thisObject, jint ctxRef)
+{
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return NULL;
+  }
+  return newWhisperResult(env, whisper_full_n_segments(whisper_ctx),
+    [whisper_ctx](int i) { return whisper_full_get_segment_t0(whisper_ctx, i); },
+    [whisper_ctx](int i) { return whisper_full_get_segment_t1(whisper_ctx, i); },
+    [whisper_ctx](int i) { return whisper_full_get_segment_text(whisper_ctx, i); });
+}
+
+JNIEXPORT jobject JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetResultFromState(JNIEnv *env, jobject thisObject, jint stateRef)
+{
+  whisper_state *state = getState(env, stateRef);
+  if (!state) {
+    return NULL;
+  }
+  return newWhisperResult(env, whisper_full_n_segments_from_state(state),
+    [state](int i) { return whisper_full_get_segment_t0_from_state(state, i); },
+    [state](int i) { return whisper_full_get_segment_t1_from_state(state, i); },
+    [state](int i) { return whisper_full_get_segment_text_from_state(state, i); });
+}
+
+// Builds a WhisperTokens instance, copying the token data of all the segments into columns.
+template <typename NTokens, typename TokenData, typename NoSpeechProb>
+jobject newWhisperTokens(JNIEnv *env, int nSegments, NTokens getNTokens, TokenData getTokenData, NoSpeechProb getNoSpeechProb)
+{
+  std::vector<jint> segmentOffsets(nSegments + 1);
+  std::vector<jfloat> noSpeechProbs(nSegments);
+  int nTokens = 0;
+  for (int i = 0; i < nSegments; i++) {
+    segmentOffsets[i] = nTokens;
+    noSpeechProbs[i] = getNoSpeechProb(i);
+    nTokens += getNTokens(i);
+  }
+  segmentOffsets[nSegments] = nTokens;
+  std::vector<jint> ids(nTokens);
+  std::vector<jfloat> probs(nTokens);
+  std::vector<jfloat> logProbs(nTokens);
+  std::vector<jlong> timestamps(nTokens * 2);
+  for (int i = 0; i < nSegments; i++) {
+    for (int j = 0, t = segmentOffsets[i]; t < segmentOffsets[i + 1]; j++, t++) {
+      whisper_token_data data = getTokenData(i, j);
+      ids[t] = data.id;
+      probs[t] = data.p;
+      logProbs[t] = data.plog;
+      timestamps[t * 2] = data.t0;
+      timestamps[t * 2 + 1] = data.t1;
+    }
+  }
+  jintArray jSegmentOffsets = env->NewIntArray(nSegments + 1);
+  jfloatArray jNoSpeechProbs = env->NewFloatArray(nSegments);
+  jintArray jIds = env->NewIntArray(nTokens);
+  jfloatArray jProbs = env->NewFloatArray(nTokens);
+  jfloatArray jLogProbs = env->NewFloatArray(nTokens);
+  jlongArray jTimestamps = env->NewLongArray(nTokens * 2);
+  if (!jSegmentOffsets || !jNoSpeechProbs || !jIds || !jProbs || !jLogProbs || !jTimestamps) {
+    return NULL;
+  }
+  env->SetIntArrayRegion(jSegmentOffsets, 0, nSegments + 1, segmentOffsets.data());
+  env->SetFloatArrayRegion(jNoSpeechProbs, 0, nSegments, noSpeechProbs.data());
+  env->SetIntArrayRegion(jIds, 0, nTokens, ids.data());
+  env->SetFloatArrayRegion(jProbs, 0, nTokens, probs.data());
+  env->SetFloatArrayRegion(jLogProbs, 0, nTokens, logProbs.data());
+  env->SetLongArrayRegion(jTimestamps, 0, nTokens * 2, timestamps.data());
+  return env->NewObject(tokensClass.clazz, tokensClass.constructor, jSegmentOffsets, jNoSpeechProbs, jIds, jProbs, jLogProbs, jTimestamps);
+}
+
+JNIEXPORT jobject JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetTokens(JNIEnv *env, jobject thisObject, jint ctxRef)
+{
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return NULL;
+  }
+  return newWhisperTokens(env, whisper_full_n_segments(whisper_ctx),
+    [whisper_ctx](int i) { return whisper_full_n_tokens(whisper_ctx, i); },
+    [whisper_ctx](int i, int j) { return whisper_full_get_token_data(whisper_ctx, i, j); },
+    [whisper_ctx](int i) { return whisper_full_get_segment_no_speech_prob(whisper_ctx, i); });
+}
+
+JNIEXPORT jobject JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetTokensFromState(JNIEnv *env, jobject thisObject, jint stateRef)
+{
+  whisper_state *state = getState(env, stateRef);
+  if (!state) {
+    return NULL;
+  }
+  return newWhisperTokens(env, whisper_full_n_segments_from_state(state),
+    [state](int i) { return whisper_full_n_tokens_from_state(state, i); },
+    [state](int i, int j) { return whisper_full_get_token_data_from_state(state, i, j); },
+    [state](int i) { return whisper_full_get_segment_no_speech_prob_from_state(state, i); });
+}
+
+JNIEXPORT jbyteArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_tokenToBytes(JNIEnv *env, jobject thisObject, jint ctxRef, jint token)
+{
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return NULL;
+  }
+  if (token < 0 || token >= whisper_n_vocab(whisper_ctx))
+  {
+    jclass exClass = env->FindClass("java/lang/IndexOutOfBoundsException");
+    env->ThrowNew(exClass, "Token out of range");
+    return NULL;
+  }
+  // a token can contain an incomplete UTF-8 sequence, so its bytes are decoded on the java side
+  const char *text = whisper_token_to_str(whisper_ctx, token);
+  jsize length = (jsize)strlen(text);
+  jbyteArray jText = env->NewByteArray(length);
+  if (jText) {
+    env->SetByteArrayRegion(jText, 0, length, (const jbyte *)text);
+  }
+  return jText;
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_tokenEot(JNIEnv *env, jobject thisObject, jint ctxRef)
+{
+  whisper_context *whisper_ctx = getContext(env, ctxRef);
+  if (!whisper_ctx) {
+    return -1;
+  }
+  return whisper_token_eot(whisper_ctx);
+}
+
+// Registers a reference to a shared grammar, returns -1 if a java exception was thrown.
+jint insertGrammar(JNIEnv *env, std::shared_ptr<compiled_grammar> grammar)
+{
+  whisper_grammar_entry *entry = new whisper_grammar_entry{std::move(grammar)};
+  int grammarRef = insertReference(env, grammars, entry, "grammar");
+  if (grammarRef == -1) {
+    delete entry;
+  }
+  return grammarRef;
+}
+
 JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_loadGrammar(JNIEnv *env, jobject thisObject, jstring grammarText) {
     const char* grammarChars = env->GetStringUTFChars(grammarText, NULL);
-    grammar_parser::parse_state* grammarPointer = new grammar_parser::parse_state{};
-    try {
-        *grammarPointer = grammar_parser::parse(grammarChars);
-    } catch(const std::exception& e) {
-        env->ReleaseStringUTFChars(grammarText, grammarChars);
-        jclass exClass = env->FindClass("java/lang/IOException");
-        env->ThrowNew(exClass, e.what());
-        return -1;
-    }
+    std::string text(grammarChars);
     env->ReleaseStringUTFChars(grammarText, grammarChars);
-    int grammarRef = getGrammarId();
-    grammarMap.insert({grammarRef, grammarPointer});
-    return grammarRef;
+    std::shared_ptr<compiled_grammar> grammar = grammarCache.get(text);
+    if (!grammar) {
+        grammar_parser::parse_state parsed;
+        try {
+            parsed = grammar_parser::parse(text.c_str());
+        } catch(const std::exception& e) {
+            jclass exClass = env->FindClass("java/io/IOException");
+            env->ThrowNew(exClass, e.what());
+            return -1;
+        }
+        grammar = std::make_shared<compiled_grammar>(std::move(text), std::move(parsed));
+        // the parser reports the errors by returning an empty grammar, those are not worth caching
+        if (!grammar->parsed.rules.empty()) {
+            grammar = grammarCache.put(std::move(grammar));
+        }
+    }
+    return insertGrammar(env, std::move(grammar));
+}
+
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_loadSerializedGrammar(JNIEnv *env, jobject thisObject, jbyteArray data)
+{
+  jsize length = env->GetArrayLength(data);
+  std::vector<uint8_t> bytes(length);
+  env->GetByteArrayRegion(data, 0, length, (jbyte *)bytes.data());
+  std::shared_ptr<compiled_grammar> grammar = grammar_binary::deserialize(bytes.data(), bytes.size());
+  if (!grammar) {
+    jclass exClass = env->FindClass("java/io/IOException");
+    env->ThrowNew(exClass, "Invalid serialized grammar");
+    return -1;
+  }
+  return insertGrammar(env, grammarCache.put(std::move(grammar)));
+}
+
+JNIEXPORT jbyteArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_serializeGrammar(JNIEnv *env, jobject thisObject, jint grammarRef)
+{
+  whisper_grammar_entry *entry = getReference(env, grammars, grammarRef, "grammar");
+  if (!entry) {
+    return NULL;
+  }
+  std::vector<uint8_t> bytes = grammar_binary::serialize(*entry->grammar);
+  jbyteArray jBytes = env->NewByteArray((jsize)bytes.size());
+  if (jBytes) {
+    env->SetByteArrayRegion(jBytes, 0, (jsize)bytes.size(), (const jbyte *)bytes.data());
+  }
+  return jBytes;
+}
+
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setGrammarCacheSize(JNIEnv *env, jobject thisObject, jlong maxBytes)
+{
+  grammarCache.setCapacity((size_t)maxBytes);
+}
+
+JNIEXPORT jlongArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_getGrammarCacheUsage(JNIEnv *env, jobject thisObject)
+{
+  jlong values[2] = {(jlong)grammarCache.count(), (jlong)grammarCache.size()};
+  jlongArray jValues = env->NewLongArray(2);
+  if (jValues) {
+    env->SetLongArrayRegion(jValues, 0, 2, values);
+  }
+  return jValues;
 }
 
 JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_printSystemInfo(JNIEnv *env, jobject thisObject)
@@ -353,30 +1550,90 @@ JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_printSyst
 }
 JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_freeContext(JNIEnv *env, jobject thisObject, jint ctxRef)
 {
-  whisper_free(contextMap.at(ctxRef));
-  contextMap.erase(ctxRef);
+  whisper_context_entry *entry = contexts.remove(ctxRef);
+  if (!entry) {
+    throwInvalidReference(env, "context");
+    return;
+  }
+  releaseContext(entry);
 }
 
 JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_freeState(JNIEnv *env, jobject thisObject, jint stateRef)
 {
-  whisper_free_state(stateMap.at(stateRef));
-  stateMap.erase(stateRef);
+  whisper_state_entry *entry = states.remove(stateRef);
+  if (!entry) {
+    throwInvalidReference(env, "state");
+    return;
+  }
+  whisper_free_state(entry->state);
+  delete entry;
 }
+
 JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_freeGrammar(JNIEnv *env, jobject thisClass, jint grammarRef)
 {
-  free(grammarMap.at(grammarRef));
-  stateMap.erase(grammarRef);
+  whisper_grammar_entry *entry = grammars.remove(grammarRef);
+  if (!entry) {
+    throwInvalidReference(env, "grammar");
+    return;
+  }
+  // the parsed grammar is released with its last user, the cache may keep it
+  delete entry;
 }
-JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setLogger(JNIEnv *env, jclass thisClass, jboolean enabled)
+
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_freeFullParams(JNIEnv *env, jobject thisObject, jint paramsRef)
 {
-    if (enabled) {
-        if (!jvmRef && env->GetJavaVM(&jvmRef) != JNI_OK) {
-            jclass exClass = env->FindClass("java/lang/RuntimeException");
-            env->ThrowNew(exClass, "Failed getting reference to Java VM");
-            return;
-        }
-    } else {
-        jvmRef = nullptr;
+  whisper_full_params_holder *holder = fullParams.remove(paramsRef);
+  if (!holder) {
+    throwInvalidReference(env, "params");
+    return;
+  }
+  holder->releaseCallbacks(env);
+  delete holder;
+}
+
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setLogger(JNIEnv *env, jclass thisClass, jint minLevel)
+{
+  logMinLevel.store(minLevel);
+  whisper_log_set(whisper_log_proxy, nullptr);
+}
+
+JNIEXPORT jobjectArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_pollLogs(JNIEnv *env, jclass thisClass, jintArray jLevels, jint timeoutMs)
+{
+  static std::mutex consumerMutex;
+  std::lock_guard<std::mutex> consumerLock(consumerMutex);
+  jsize maxLines = env->GetArrayLength(jLevels);
+  std::vector<jint> levels;
+  std::vector<std::string> lines;
+  size_t dropped = logRing.takeDropped();
+  if (dropped > 0 && maxLines > 0) {
+    levels.push_back(LOG_WARN);
+    lines.push_back("whisper-jni: " + std::to_string(dropped) + " log lines dropped\n");
+  }
+  int level;
+  std::string text;
+  if (lines.empty()) {
+    if (!logRing.pop(level, text)) {
+      logRing.wait(timeoutMs);
+      if (!logRing.pop(level, text)) {
+        return nullptr;
+      }
     }
-    whisper_log_set(whisper_log_proxy, nullptr);
+    levels.push_back(level);
+    lines.push_back(text);
+  }
+  while ((jsize)lines.size() < maxLines && logRing.pop(level, text)) {
+    levels.push_back(level);
+    lines.push_back(text);
+  }
+  jobjectArray result = env->NewObjectArray((jsize)lines.size(), env->FindClass("java/lang/String"), nullptr);
+  if (!result) {
+    return nullptr;
+  }
+  for (size_t i = 0; i < lines.size(); i++) {
+    jstring line = env->NewStringUTF(lines[i].c_str());
+    env->SetObjectArrayElement(result, (jsize)i, line);
+    env->DeleteLocalRef(line);
+  }
+  env->SetIntArrayRegion(jLevels, 0, (jsize)levels.size(), levels.data());
+  return result;
 }
\ No newline at end of file
@@ -39,6 +39,38 @@ JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_initState
 JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_loadGrammar
   (JNIEnv *, jobject, jstring);
 
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    loadSerializedGrammar
+ * Signature: ([B)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_loadSerializedGrammar
+  (JNIEnv *, jobject, jbyteArray);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    serializeGrammar
+ * Signature: (I)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_serializeGrammar
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    setGrammarCacheSize
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setGrammarCacheSize
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    getGrammarCacheUsage
+ * Signature: ()[J
+ */
+JNIEXPORT jlongArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_getGrammarCacheUsage
+  (JNIEnv *, jobject);
+
 /*
  * Class:     io_github_givimad_whisperjni_WhisperJNI
  * Method:    initOpenVINOEncoder
@@ -55,6 +87,38 @@ JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_initOpenVINO
 JNIEXPORT jboolean JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_isMultilingual
   (JNIEnv *, jobject, jint);
 
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    detectLanguage
+ * Signature: (II[FII)[F
+ */
+JNIEXPORT jfloatArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_detectLanguage
+  (JNIEnv *, jobject, jint, jint, jfloatArray, jint, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    langMaxId
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_langMaxId
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    langId
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_langId
+  (JNIEnv *, jobject, jstring);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    langStr
+ * Signature: (IZ)Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_langStr
+  (JNIEnv *, jobject, jint, jboolean);
+
 /*
  * Class:     io_github_givimad_whisperjni_WhisperJNI
  * Method:    full
@@ -71,6 +135,166 @@ JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_full
 JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullWithState
   (JNIEnv *, jobject, jint, jint, jobject, jfloatArray, jint);
 
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullDirect
+ * Signature: (ILio/github/givimad/whisperjni/WhisperFullParams;Ljava/nio/FloatBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullDirect
+  (JNIEnv *, jobject, jint, jobject, jobject, jint, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullWithStateDirect
+ * Signature: (IILio/github/givimad/whisperjni/WhisperFullParams;Ljava/nio/FloatBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullWithStateDirect
+  (JNIEnv *, jobject, jint, jint, jobject, jobject, jint, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    compileFullParams
+ * Signature: (Lio/github/givimad/whisperjni/WhisperFullParams;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_compileFullParams
+  (JNIEnv *, jobject, jobject);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullCompiled
+ * Signature: (II[FI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullCompiled
+  (JNIEnv *, jobject, jint, jint, jfloatArray, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullWithStateCompiled
+ * Signature: (III[FI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullWithStateCompiled
+  (JNIEnv *, jobject, jint, jint, jint, jfloatArray, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullCompiledDirect
+ * Signature: (IILjava/nio/FloatBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullCompiledDirect
+  (JNIEnv *, jobject, jint, jint, jobject, jint, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullWithStateCompiledDirect
+ * Signature: (IIILjava/nio/FloatBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullWithStateCompiledDirect
+  (JNIEnv *, jobject, jint, jint, jint, jobject, jint, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullPCM16
+ * Signature: (IILio/github/givimad/whisperjni/WhisperFullParams;I[SI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullPCM16
+  (JNIEnv *, jobject, jint, jint, jobject, jint, jshortArray, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullPCMDirect
+ * Signature: (IILio/github/givimad/whisperjni/WhisperFullParams;ILjava/nio/ByteBuffer;IIIIZ)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullPCMDirect
+  (JNIEnv *, jobject, jint, jint, jobject, jint, jobject, jint, jint, jint, jint, jboolean);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    pcmToMel
+ * Signature: (II[FI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_pcmToMel
+  (JNIEnv *, jobject, jint, jint, jfloatArray, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    setMel
+ * Signature: (II[FII)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setMel
+  (JNIEnv *, jobject, jint, jint, jfloatArray, jint, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    encode
+ * Signature: (III)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_encode
+  (JNIEnv *, jobject, jint, jint, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullFromMel
+ * Signature: (IILio/github/givimad/whisperjni/WhisperFullParams;I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullFromMel
+  (JNIEnv *, jobject, jint, jint, jobject, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    setContextAbort
+ * Signature: (IZ)V
+ */
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setContextAbort
+  (JNIEnv *, jobject, jint, jboolean);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    setStateAbort
+ * Signature: (IZ)V
+ */
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setStateAbort
+  (JNIEnv *, jobject, jint, jboolean);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    setStateThreads
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setStateThreads
+  (JNIEnv *, jobject, jint, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    setStateAffinity
+ * Signature: (I[I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setStateAffinity
+  (JNIEnv *, jobject, jint, jintArray);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    setThreadAffinity
+ * Signature: ([I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setThreadAffinity
+  (JNIEnv *, jobject, jintArray);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    getThreadAffinity
+ * Signature: ()[I
+ */
+JNIEXPORT jintArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_getThreadAffinity
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    getComputeAffinity
+ * Signature: (II)[I
+ */
+JNIEXPORT jintArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_getComputeAffinity
+  (JNIEnv *, jobject, jint, jint);
+
 /*
  * Class:     io_github_givimad_whisperjni_WhisperJNI
  * Method:    fullNSegments
@@ -135,6 +359,70 @@ JNIEXPORT jlong JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegm
 JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetSegmentTextFromState
   (JNIEnv *, jobject, jint, jint);
 
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullGetResult
+ * Signature: (I)Lio/github/givimad/whisperjni/WhisperResult;
+ */
+JNIEXPORT jobject JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetResult
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullGetResultFromState
+ * Signature: (I)Lio/github/givimad/whisperjni/WhisperResult;
+ */
+JNIEXPORT jobject JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetResultFromState
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullGetTimings
+ * Signature: (I)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetTimings
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullGetTimingsFromState
+ * Signature: (I)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetTimingsFromState
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullGetTokens
+ * Signature: (I)Lio/github/givimad/whisperjni/WhisperTokens;
+ */
+JNIEXPORT jobject JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetTokens
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    fullGetTokensFromState
+ * Signature: (I)Lio/github/givimad/whisperjni/WhisperTokens;
+ */
+JNIEXPORT jobject JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_fullGetTokensFromState
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    tokenToBytes
+ * Signature: (II)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_tokenToBytes
+  (JNIEnv *, jobject, jint, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    tokenEot
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_tokenEot
+  (JNIEnv *, jobject, jint);
+
 /*
  * Class:     io_github_givimad_whisperjni_WhisperJNI
  * Method:    freeContext
@@ -159,6 +447,14 @@ JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_freeState
 JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_freeGrammar
   (JNIEnv *, jobject, jint);
 
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    freeFullParams
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_freeFullParams
+  (JNIEnv *, jobject, jint);
+
 /*
  * Class:     io_github_givimad_whisperjni_WhisperJNI
  * Method:    printSystemInfo
@@ -170,10 +466,18 @@ JNIEXPORT jstring JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_printSyst
 /*
  * Class:     io_github_givimad_whisperjni_WhisperJNI
  * Method:    setLogger
- * Signature: (Z)V
+ * Signature: (I)V
  */
 JNIEXPORT void JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_setLogger
-  (JNIEnv *, jclass, jboolean);
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     io_github_givimad_whisperjni_WhisperJNI
+ * Method:    pollLogs
+ * Signature: ([II)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_io_github_givimad_whisperjni_WhisperJNI_pollLogs
+  (JNIEnv *, jclass, jintArray, jint);
 
 #ifdef __cplusplus
 }
@@ -0,0 +1,95 @@
+#ifndef WHISPER_JNI_AFFINITY_H
+#define WHISPER_JNI_AFFINITY_H
+
+#include <vector>
+
+#ifdef __linux__
+#include <sched.h>
+#endif
+
+// Cpu affinity of the calling thread, only supported on linux.
+//
+// The ggml compute threads inherit the affinity of the thread that creates them, but with the OpenMP build
+// they are created once per calling thread, on its first computation, and reused by its later calls.
+// Pinning the calling thread for the duration of a call only pins the whole computation when that thread
+// was already pinned to the same cpus before its first computation, otherwise the compute threads
+// keep the affinity it had when they were created.
+
+inline bool affinitySupported()
+{
+#ifdef __linux__
+  return true;
+#else
+  return false;
+#endif
+}
+
+// Gets the cpus the calling thread can run on, empty if unsupported.
+inline std::vector<int> getThreadAffinity()
+{
+  std::vector<int> cpus;
+#ifdef __linux__
+  cpu_set_t set;
+  CPU_ZERO(&set);
+  if (sched_getaffinity(0, sizeof(set), &set) == 0) {
+    for (int cpu = 0; cpu < CPU_SETSIZE; cpu++) {
+      if (CPU_ISSET(cpu, &set)) {
+        cpus.push_back(cpu);
+      }
+    }
+  }
+#endif
+  return cpus;
+}
+
+// Pins the calling thread to the cpus until changed again, returns false on failure.
+inline bool setThreadAffinity(const std::vector<int> &cpus)
+{
+#ifdef __linux__
+  cpu_set_t set;
+  CPU_ZERO(&set);
+  for (int cpu : cpus) {
+    if (cpu >= 0 && cpu < CPU_SETSIZE) {
+      CPU_SET(cpu, &set);
+    }
+  }
+  return CPU_COUNT(&set) > 0 && sched_setaffinity(0, sizeof(set), &set) == 0;
+#else
+  return false;
+#endif
+}
+
+// Pins the calling thread to the cpus while in scope, the previous affinity is restored on exit.
+class ScopedAffinity
+{
+public:
+  explicit ScopedAffinity(const std::vector<int> &cpus)
+  {
+#ifdef __linux__
+    if (cpus.empty() || sched_getaffinity(0, sizeof(previous_), &previous_) != 0) {
+      return;
+    }
+    pinned_ = setThreadAffinity(cpus);
+#endif
+  }
+
+  ScopedAffinity(const ScopedAffinity &) = delete;
+  ScopedAffinity &operator=(const ScopedAffinity &) = delete;
+
+  ~ScopedAffinity()
+  {
+#ifdef __linux__
+    if (pinned_) {
+      sched_setaffinity(0, sizeof(previous_), &previous_);
+    }
+#endif
+  }
+
+private:
+#ifdef __linux__
+  cpu_set_t previous_;
+#endif
+  bool pinned_ = false;
+};
+
+#endif
@@ -0,0 +1,324 @@
+#ifndef WHISPER_JNI_GRAMMARS_H
+#define WHISPER_JNI_GRAMMARS_H
+
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+#include <list>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <string_view>
+#include <unordered_map>
+#include <vector>
+#include "whisper.h"
+#include "grammar-parser.h"
+
+// A parsed grammar together with the rule pointers whisper_full expects, computed once.
+// Instances are shared by the grammar references, the compiled params and the cache, and are immutable once built.
+struct compiled_grammar
+{
+  std::string text;
+  grammar_parser::parse_state parsed;
+  std::vector<const whisper_grammar_element *> rules;
+  bool hasRoot = false;
+  size_t rootId = 0;
+  // approximated memory used by the entry
+  size_t bytes = 0;
+
+  compiled_grammar(std::string grammarText, grammar_parser::parse_state state) : text(std::move(grammarText)), parsed(std::move(state))
+  {
+    rules = parsed.c_rules();
+    auto root = parsed.symbol_ids.find("root");
+    hasRoot = !parsed.rules.empty() && root != parsed.symbol_ids.end() && root->second < parsed.rules.size();
+    rootId = hasRoot ? root->second : 0;
+    bytes = sizeof(compiled_grammar) + text.capacity() + rules.capacity() * sizeof(const whisper_grammar_element *);
+    for (const auto &symbol : parsed.symbol_ids) {
+      // map node overhead
+      bytes += symbol.first.capacity() + 4 * sizeof(void *) + sizeof(std::string) + sizeof(uint32_t);
+    }
+    for (const auto &rule : parsed.rules) {
+      bytes += sizeof(rule) + rule.capacity() * sizeof(whisper_grammar_element);
+    }
+  }
+
+  compiled_grammar(const compiled_grammar &) = delete;
+  compiled_grammar &operator=(const compiled_grammar &) = delete;
+};
+
+// Deduplicates the parsed grammars by their text.
+//
+// The cache holds a reference to the most recently used grammars while their memory is under the capacity,
+// evicting the least recently used ones. Evicted grammars stay alive while they are referenced elsewhere.
+class GrammarCache
+{
+public:
+  static constexpr size_t DEFAULT_CAPACITY = 32 * 1024 * 1024;
+
+  // Returns the cached grammar for the text, or nullptr if it is not cached.
+  std::shared_ptr<compiled_grammar> get(const std::string &text)
+  {
+    std::lock_guard<std::mutex> lock(mutex_);
+    auto found = index_.find(std::string_view(text));
+    if (found == index_.end()) {
+      return nullptr;
+    }
+    lru_.splice(lru_.begin(), lru_, found->second);
+    return found->second->grammar;
+  }
+
+  // Caches the grammar, returns the one already cached for the same text if another thread was faster.
+  std::shared_ptr<compiled_grammar> put(std::shared_ptr<compiled_grammar> grammar)
+  {
+    std::lock_guard<std::mutex> lock(mutex_);
+    auto found = index_.find(std::string_view(grammar->text));
+    if (found != index_.end()) {
+      lru_.splice(lru_.begin(), lru_, found->second);
+      return found->second->grammar;
+    }
+    if (grammar->bytes > capacity_) {
+      return grammar;
+    }
+    lru_.push_front(cache_node{grammar});
+    index_.emplace(std::string_view(grammar->text), lru_.begin());
+    size_ += grammar->bytes;
+    evict();
+    return grammar;
+  }
+
+  // Sets the memory limit in bytes, 0 disables the cache.
+  void setCapacity(size_t capacity)
+  {
+    std::lock_guard<std::mutex> lock(mutex_);
+    capacity_ = capacity;
+    evict();
+  }
+
+  void clear()
+  {
+    std::lock_guard<std::mutex> lock(mutex_);
+    index_.clear();
+    lru_.clear();
+    size_ = 0;
+  }
+
+  // Gets the approximated memory held by the cached grammars.
+  size_t size()
+  {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return size_;
+  }
+
+  size_t count()
+  {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return lru_.size();
+  }
+
+private:
+  struct cache_node
+  {
+    std::shared_ptr<compiled_grammar> grammar;
+  };
+
+  void evict()
+  {
+    while (size_ > capacity_ && !lru_.empty()) {
+      cache_node &last = lru_.back();
+      size_ -= last.grammar->bytes;
+      index_.erase(std::string_view(last.grammar->text));
+      lru_.pop_back();
+    }
+  }
+
+  std::mutex mutex_;
+  // most recently used first, the index keys point to the text of the grammars in the list
+  std::list<cache_node> lru_;
+  std::unordered_map<std::string_view, std::list<cache_node>::iterator> index_;
+  size_t size_ = 0;
+  size_t capacity_ = DEFAULT_CAPACITY;
+};
+
+// Binary grammar format, all the integers are unsigned 32 bits little endian:
+// magic "WJG1", text length and UTF-8 text, symbol count and for each one its name length, name and rule id,
+// rule count and for each rule its element count followed by the element type and value pairs.
+namespace grammar_binary
+{
+  static const char MAGIC[4] = {'W', 'J', 'G', '1'};
+
+  inline void writeU32(std::vector<uint8_t> &out, uint32_t value)
+  {
+    for (int i = 0; i < 4; i++) {
+      out.push_back((uint8_t)(value >> (8 * i)));
+    }
+  }
+
+  inline void writeBytes(std::vector<uint8_t> &out, const std::string &value)
+  {
+    writeU32(out, (uint32_t)value.size());
+    out.insert(out.end(), value.begin(), value.end());
+  }
+
+  inline std::vector<uint8_t> serialize(const compiled_grammar &grammar)
+  {
+    std::vector<uint8_t> out;
+    out.insert(out.end(), MAGIC, MAGIC + 4);
+    writeBytes(out, grammar.text);
+    writeU32(out, (uint32_t)grammar.parsed.symbol_ids.size());
+    for (const auto &symbol : grammar.parsed.symbol_ids) {
+      writeBytes(out, symbol.first);
+      writeU32(out, symbol.second);
+    }
+    writeU32(out, (uint32_t)grammar.parsed.rules.size());
+    for (const auto &rule : grammar.parsed.rules) {
+      writeU32(out, (uint32_t)rule.size());
+      for (const auto &element : rule) {
+        writeU32(out, (uint32_t)element.type);
+        writeU32(out, element.value);
+      }
+    }
+    return out;
+  }
+
+  class reader
+  {
+  public:
+    reader(const uint8_t *data, size_t size) : data_(data), size_(size) {}
+
+    bool u32(uint32_t &value)
+    {
+      if (size_ - offset_ < 4) {
+        return false;
+      }
+      value = 0;
+      for (int i = 0; i < 4; i++) {
+        value |= (uint32_t)data_[offset_ + i] << (8 * i);
+      }
+      offset_ += 4;
+      return true;
+    }
+
+    bool bytes(std::string &value)
+    {
+      uint32_t length;
+      if (!u32(length) || size_ - offset_ < length) {
+        return false;
+      }
+      value.assign((const char *)data_ + offset_, length);
+      offset_ += length;
+      return true;
+    }
+
+    // checks a count against the remaining bytes, so corrupted counts do not allocate huge vectors
+    bool count(uint32_t &value, size_t minBytesEach)
+    {
+      return u32(value) && (size_t)value <= (size_ - offset_) / minBytesEach;
+    }
+
+    bool skip(size_t n)
+    {
+      if (size_ - offset_ < n) {
+        return false;
+      }
+      offset_ += n;
+      return true;
+    }
+
+    bool done() const
+    {
+      return offset_ == size_;
+    }
+
+  private:
+    const uint8_t *data_;
+    size_t size_;
+    size_t offset_ = 0;
+  };
+
+  // Builds a grammar from its binary form without parsing the text, returns nullptr if the data is not valid.
+  // Checks that a range or alternative element can follow the previous element of a char class,
+  // [a-zA-Z] is stored as CHAR a, CHAR_RNG_UPPER z, CHAR_ALT A, CHAR_RNG_UPPER Z.
+  inline bool continuesChar(whisper_gretype previous, whisper_gretype type)
+  {
+    switch (previous) {
+    case WHISPER_GRETYPE_CHAR:
+    case WHISPER_GRETYPE_CHAR_NOT:
+    case WHISPER_GRETYPE_CHAR_ALT:
+      return true;
+    case WHISPER_GRETYPE_CHAR_RNG_UPPER:
+      // a range ends its char, only another alternative can follow
+      return type == WHISPER_GRETYPE_CHAR_ALT;
+    default:
+      return false;
+    }
+  }
+
+  inline std::shared_ptr<compiled_grammar> deserialize(const uint8_t *data, size_t size)
+  {
+    if (size < 4 || std::memcmp(data, MAGIC, 4) != 0) {
+      return nullptr;
+    }
+    reader in(data, size);
+    in.skip(4);
+    std::string text;
+    uint32_t nSymbols;
+    if (!in.bytes(text) || !in.count(nSymbols, 8)) {
+      return nullptr;
+    }
+    grammar_parser::parse_state state;
+    for (uint32_t i = 0; i < nSymbols; i++) {
+      std::string name;
+      uint32_t id;
+      if (!in.bytes(name) || !in.u32(id)) {
+        return nullptr;
+      }
+      state.symbol_ids[name] = id;
+    }
+    uint32_t nRules;
+    if (!in.count(nRules, 4)) {
+      return nullptr;
+    }
+    state.rules.resize(nRules);
+    for (auto &rule : state.rules) {
+      uint32_t nElements;
+      if (!in.count(nElements, 8) || nElements == 0) {
+        return nullptr;
+      }
+      rule.resize(nElements);
+      for (uint32_t i = 0; i < nElements; i++) {
+        auto &element = rule[i];
+        uint32_t type;
+        if (!in.u32(type) || !in.u32(element.value) || type > WHISPER_GRETYPE_CHAR_ALT) {
+          return nullptr;
+        }
+        element.type = (whisper_gretype)type;
+        // rule references are followed by the sampler, they should point to an existing rule
+        if (element.type == WHISPER_GRETYPE_RULE_REF && element.value >= nRules) {
+          return nullptr;
+        }
+        // the sampler reads ranges and alternatives as part of the char element before them
+        if ((element.type == WHISPER_GRETYPE_CHAR_RNG_UPPER || element.type == WHISPER_GRETYPE_CHAR_ALT) &&
+            (i == 0 || !continuesChar(rule[i - 1].type, element.type))) {
+          return nullptr;
+        }
+        if (element.type == WHISPER_GRETYPE_END && i + 1 != nElements) {
+          return nullptr;
+        }
+      }
+      if (rule.back().type != WHISPER_GRETYPE_END) {
+        return nullptr;
+      }
+    }
+    for (const auto &symbol : state.symbol_ids) {
+      if (symbol.second >= nRules) {
+        return nullptr;
+      }
+    }
+    if (!in.done()) {
+      return nullptr;
+    }
+    return std::make_shared<compiled_grammar>(std::move(text), std::move(state));
+  }
+}
+
+#endif
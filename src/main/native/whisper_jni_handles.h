@@ -0,0 +1,129 @@
+#ifndef WHISPER_JNI_HANDLES_H
+#define WHISPER_JNI_HANDLES_H
+
+#include <atomic>
+#include <cstdint>
+
+// Maps the integer ids shared with java to native pointers.
+//
+// Each id encodes a slot index and the slot generation, the generation is increased when the slot is released,
+// so a released id is never resolved again even if its slot is reused.
+// A slot whose generation would wrap is retired instead of reused, the table fills up after about 2^31 insertions.
+// Lookups are wait-free, slots are reserved and released through a lock-free free list.
+template <typename T>
+class HandleTable
+{
+public:
+  static const int INDEX_BITS = 14;
+  static const uint32_t CAPACITY = 1u << INDEX_BITS;
+
+  // Stores the pointer and returns its id, or -1 if there are no free slots.
+  int insert(T *value)
+  {
+    int32_t index = reserveSlot();
+    if (index < 0) {
+      return -1;
+    }
+    Slot &slot = slots[index];
+    uint32_t generation = nextGeneration(slot.generation.load(std::memory_order_relaxed) >> 1);
+    slot.value.store(value, std::memory_order_relaxed);
+    // publishing the live generation makes the value visible to lookups
+    slot.generation.store((generation << 1) | 1u, std::memory_order_release);
+    return (int)((generation << INDEX_BITS) | (uint32_t)index);
+  }
+
+  // Returns the pointer for the id, or nullptr if the id is unknown or was released.
+  T *get(int ref) const
+  {
+    if (ref <= 0) {
+      return nullptr;
+    }
+    const Slot &slot = slots[(uint32_t)ref & INDEX_MASK];
+    uint32_t expected = (((uint32_t)ref >> INDEX_BITS) << 1) | 1u;
+    if (slot.generation.load(std::memory_order_acquire) != expected) {
+      return nullptr;
+    }
+    T *value = slot.value.load(std::memory_order_acquire);
+    // check again, the slot could have been released and reused while reading the value
+    if (slot.generation.load(std::memory_order_acquire) != expected) {
+      return nullptr;
+    }
+    return value;
+  }
+
+  // Releases the id and returns its pointer, or nullptr if the id is unknown or was already released.
+  T *remove(int ref)
+  {
+    if (ref <= 0) {
+      return nullptr;
+    }
+    uint32_t index = (uint32_t)ref & INDEX_MASK;
+    Slot &slot = slots[index];
+    uint32_t expected = (((uint32_t)ref >> INDEX_BITS) << 1) | 1u;
+    // only one caller can move the slot out of the live generation
+    if (!slot.generation.compare_exchange_strong(expected, expected & ~1u, std::memory_order_acq_rel, std::memory_order_relaxed)) {
+      return nullptr;
+    }
+    T *value = slot.value.exchange(nullptr, std::memory_order_acq_rel);
+    // reusing the slot after its last generation would issue ids that alias the released ones
+    if (((uint32_t)ref >> INDEX_BITS) < MAX_GENERATION) {
+      releaseSlot(index);
+    }
+    return value;
+  }
+
+private:
+  static const uint32_t INDEX_MASK = CAPACITY - 1;
+  static const uint32_t MAX_GENERATION = (1u << (31 - INDEX_BITS)) - 1;
+
+  struct Slot
+  {
+    // generation shifted left by one, the lowest bit is set while the slot is live
+    std::atomic<uint32_t> generation{0};
+    std::atomic<T *> value{nullptr};
+    // index + 1 of the next free slot, 0 terminates the list
+    std::atomic<uint32_t> nextFree{0};
+  };
+
+  Slot slots[CAPACITY];
+  // free list head, the low 32 bits contain the slot index + 1, the high 32 bits a tag to prevent ABA
+  std::atomic<uint64_t> freeHead{0};
+  std::atomic<uint32_t> used{0};
+
+  static uint32_t nextGeneration(uint32_t generation)
+  {
+    // generation 0 is never issued, so ids are always greater than zero, slots are retired at MAX_GENERATION
+    return generation + 1;
+  }
+
+  int32_t reserveSlot()
+  {
+    uint64_t head = freeHead.load(std::memory_order_acquire);
+    while ((uint32_t)head != 0) {
+      uint32_t index = (uint32_t)head - 1;
+      uint64_t next = (((head >> 32) + 1) << 32) | slots[index].nextFree.load(std::memory_order_relaxed);
+      if (freeHead.compare_exchange_weak(head, next, std::memory_order_acq_rel, std::memory_order_acquire)) {
+        return (int32_t)index;
+      }
+    }
+    uint32_t count = used.load(std::memory_order_relaxed);
+    while (count < CAPACITY) {
+      if (used.compare_exchange_weak(count, count + 1, std::memory_order_relaxed)) {
+        return (int32_t)count;
+      }
+    }
+    return -1;
+  }
+
+  void releaseSlot(uint32_t index)
+  {
+    uint64_t head = freeHead.load(std::memory_order_relaxed);
+    uint64_t next;
+    do {
+      slots[index].nextFree.store((uint32_t)head, std::memory_order_relaxed);
+      next = (((head >> 32) + 1) << 32) | (index + 1);
+    } while (!freeHead.compare_exchange_weak(head, next, std::memory_order_release, std::memory_order_relaxed));
+  }
+};
+
+#endif
@@ -0,0 +1,119 @@
+#ifndef WHISPER_JNI_LOG_H
+#define WHISPER_JNI_LOG_H
+
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+#include <mutex>
+#include <string>
+
+// Bounded multi producer single consumer queue of log lines.
+//
+// Producers are the threads logging from whisper.cpp and ggml, they never block or touch the jvm:
+// a line is copied into a free slot, or dropped and counted when the queue is full.
+// The consumer is the java log thread, which waits on a condition variable with a timeout.
+// Slots carry a sequence number so producers only contend on the tail index (bounded mpmc queue by Dmitry Vyukov).
+class LogRing
+{
+public:
+  static constexpr size_t CAPACITY = 256;
+  static constexpr size_t LINE_SIZE = 512;
+
+  LogRing()
+  {
+    for (size_t i = 0; i < CAPACITY; i++) {
+      slots_[i].sequence.store(i, std::memory_order_relaxed);
+    }
+  }
+
+  LogRing(const LogRing &) = delete;
+  LogRing &operator=(const LogRing &) = delete;
+
+  bool push(int level, const char *text)
+  {
+    size_t position = tail_.load(std::memory_order_relaxed);
+    log_slot *slot;
+    for (;;) {
+      slot = &slots_[position % CAPACITY];
+      size_t sequence = slot->sequence.load(std::memory_order_acquire);
+      intptr_t diff = (intptr_t)sequence - (intptr_t)position;
+      if (diff == 0) {
+        if (tail_.compare_exchange_weak(position, position + 1, std::memory_order_relaxed)) {
+          break;
+        }
+      } else if (diff < 0) {
+        dropped_.fetch_add(1, std::memory_order_relaxed);
+        return false;
+      } else {
+        position = tail_.load(std::memory_order_relaxed);
+      }
+    }
+    slot->level = level;
+    size_t length = strnlen(text, LINE_SIZE - 1);
+    // a truncated line should not end with part of a utf-8 sequence, back off to the start of the cut one
+    while (length > 0 && ((unsigned char)text[length] & 0xC0) == 0x80) {
+      length--;
+    }
+    std::memcpy(slot->text, text, length);
+    slot->length = length;
+    slot->sequence.store(position + 1, std::memory_order_release);
+    if (waiting_.load()) {
+      // the mutex is not taken, a wakeup lost in between is covered by the consumer wait timeout
+      ready_.notify_one();
+    }
+    return true;
+  }
+
+  // Only one thread may pop at a time.
+  bool pop(int &level, std::string &text)
+  {
+    log_slot &slot = slots_[head_ % CAPACITY];
+    if (slot.sequence.load(std::memory_order_acquire) != head_ + 1) {
+      return false;
+    }
+    level = slot.level;
+    text.assign(slot.text, slot.length);
+    slot.sequence.store(head_ + CAPACITY, std::memory_order_release);
+    head_++;
+    return true;
+  }
+
+  // Waits until a line is available or the timeout expires.
+  void wait(int timeoutMs)
+  {
+    std::unique_lock<std::mutex> lock(waitMutex_);
+    waiting_.store(true);
+    ready_.wait_for(lock, std::chrono::milliseconds(timeoutMs), [this]() {
+      return slots_[head_ % CAPACITY].sequence.load(std::memory_order_acquire) == head_ + 1;
+    });
+    waiting_.store(false);
+  }
+
+  // Gets and resets the number of dropped lines.
+  size_t takeDropped()
+  {
+    return dropped_.exchange(0);
+  }
+
+private:
+  struct log_slot
+  {
+    std::atomic<size_t> sequence;
+    int level;
+    size_t length;
+    char text[LINE_SIZE];
+  };
+
+  log_slot slots_[CAPACITY];
+  std::atomic<size_t> tail_{0};
+  size_t head_ = 0;
+  std::atomic<size_t> dropped_{0};
+  std::atomic<bool> waiting_{false};
+  std::mutex waitMutex_;
+  std::condition_variable ready_;
+};
+
+#endif
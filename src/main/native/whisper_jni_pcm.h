@@ -0,0 +1,102 @@
+#ifndef WHISPER_JNI_PCM_H
+#define WHISPER_JNI_PCM_H
+
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+
+// Integer PCM to f32 conversion used by the pcm entry points.
+//
+// Formats match the java WhisperPCMFormat ordinals: unsigned 8 bit, signed 16 bit and signed 32 bit samples.
+// Interleaved channels are averaged into a single channel.
+// The loops are kept branch free over plain arrays so the compiler can vectorize them.
+enum pcm_format
+{
+  PCM8 = 0,
+  PCM16 = 1,
+  PCM32 = 2,
+};
+
+inline size_t pcmSampleSize(int format)
+{
+  switch (format) {
+  case PCM8:
+    return 1;
+  case PCM16:
+    return 2;
+  case PCM32:
+    return 4;
+  default:
+    return 0;
+  }
+}
+
+template <typename T, bool Swap>
+inline float loadPCM(const uint8_t *data)
+{
+  T value;
+  // buffers are not required to be aligned
+  std::memcpy(&value, data, sizeof(T));
+  if constexpr (Swap && sizeof(T) == 2) {
+    uint16_t bits = (uint16_t)value;
+    value = (T)(uint16_t)((bits >> 8) | (bits << 8));
+  } else if constexpr (Swap && sizeof(T) == 4) {
+    uint32_t bits = (uint32_t)value;
+    value = (T)((bits >> 24) | ((bits >> 8) & 0xff00u) | ((bits << 8) & 0xff0000u) | (bits << 24));
+  }
+  if constexpr (sizeof(T) == 1) {
+    return (float)value - 128.0f;
+  } else {
+    return (float)value;
+  }
+}
+
+template <typename T, bool Swap>
+void pcmToFloat(const uint8_t *data, float *out, size_t frames, int channels, float scale)
+{
+  if (channels == 1) {
+    for (size_t i = 0; i < frames; i++) {
+      out[i] = loadPCM<T, Swap>(data + i * sizeof(T)) * scale;
+    }
+    return;
+  }
+  const float channelScale = scale / channels;
+  const size_t frameSize = sizeof(T) * channels;
+  for (size_t i = 0; i < frames; i++) {
+    const uint8_t *frame = data + i * frameSize;
+    float sum = 0.0f;
+    for (int c = 0; c < channels; c++) {
+      sum += loadPCM<T, Swap>(frame + c * sizeof(T));
+    }
+    out[i] = sum * channelScale;
+  }
+}
+
+// Converts interleaved integer pcm samples into mono f32 samples, returns false on unknown formats.
+inline bool convertPCM(const void *data, int format, bool swap, size_t frames, int channels, float *out)
+{
+  const uint8_t *bytes = (const uint8_t *)data;
+  switch (format) {
+  case PCM8:
+    pcmToFloat<uint8_t, false>(bytes, out, frames, channels, 1.0f / 128.0f);
+    return true;
+  case PCM16:
+    if (swap) {
+      pcmToFloat<int16_t, true>(bytes, out, frames, channels, 1.0f / 32768.0f);
+    } else {
+      pcmToFloat<int16_t, false>(bytes, out, frames, channels, 1.0f / 32768.0f);
+    }
+    return true;
+  case PCM32:
+    if (swap) {
+      pcmToFloat<int32_t, true>(bytes, out, frames, channels, 1.0f / 2147483648.0f);
+    } else {
+      pcmToFloat<int32_t, false>(bytes, out, frames, channels, 1.0f / 2147483648.0f);
+    }
+    return true;
+  default:
+    return false;
+  }
+}
+
+#endif
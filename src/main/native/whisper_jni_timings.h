@@ -0,0 +1,100 @@
+#ifndef WHISPER_JNI_TIMINGS_H
+#define WHISPER_JNI_TIMINGS_H
+
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+
+// Timings of the last full call run on a context or state, in microseconds.
+struct full_timings
+{
+  int64_t totalUs;
+  int64_t melUs;
+  int64_t encodeUs;
+  int64_t decodeUs;
+  int32_t nWindows;
+  int32_t nSampled;
+};
+
+// Splits a full call into phases using the whisper.cpp callbacks.
+//
+// whisper_full computes the mel spectrogram of the whole input first, then for each 30 seconds window
+// calls the encoder begin callback, runs the encoder and decodes, calling the logits filter callback before each sampling.
+// So the time until the first encoder begin is the mel (and language detection) time,
+// and inside a window the first logits filter call separates the encoder from the decoder.
+class FullTimer
+{
+public:
+  FullTimer() : start_(now())
+  {
+  }
+
+  // Called from the encoder begin callback, on the thread running the call.
+  void windowBegin()
+  {
+    int64_t time = now();
+    if (nWindows_ == 0) {
+      mel_ = time - start_;
+    } else {
+      windowEnd(time);
+    }
+    windowStart_ = time;
+    encoding_.store(true);
+    nWindows_++;
+  }
+
+  // Called from the logits filter callback, which may run on several sampling threads at once.
+  void sampled()
+  {
+    bool expected = true;
+    if (encoding_.load(std::memory_order_relaxed) && encoding_.compare_exchange_strong(expected, false)) {
+      // sampling threads are joined before the next window starts, so the main thread sees these writes
+      decodeStart_ = now();
+      encode_ += decodeStart_ - windowStart_;
+    }
+    nSampled_.fetch_add(1, std::memory_order_relaxed);
+  }
+
+  void finish(full_timings &timings)
+  {
+    int64_t time = now();
+    if (nWindows_ == 0) {
+      mel_ = time - start_;
+    } else {
+      windowEnd(time);
+    }
+    timings.totalUs = time - start_;
+    timings.melUs = mel_;
+    timings.encodeUs = encode_;
+    timings.decodeUs = decode_;
+    timings.nWindows = nWindows_;
+    timings.nSampled = nSampled_.load();
+  }
+
+private:
+  static int64_t now()
+  {
+    return std::chrono::duration_cast<std::chrono::microseconds>(std::chrono::steady_clock::now().time_since_epoch()).count();
+  }
+
+  void windowEnd(int64_t time)
+  {
+    if (encoding_.load()) {
+      encode_ += time - windowStart_;
+    } else {
+      decode_ += time - decodeStart_;
+    }
+  }
+
+  int64_t start_;
+  int64_t mel_ = 0;
+  int64_t encode_ = 0;
+  int64_t decode_ = 0;
+  int64_t windowStart_ = 0;
+  int64_t decodeStart_ = 0;
+  int32_t nWindows_ = 0;
+  std::atomic<bool> encoding_{false};
+  std::atomic<int32_t> nSampled_{0};
+};
+
+#endif
@@ -8,14 +8,31 @@ import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.text.ParseException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -63,6 +80,28 @@ public class WhisperJNITest {
         ctx.close();
     }
     @Test
+    public void testDetectLanguage() throws Exception {
+        int englishId = whisper.getLanguageId("en");
+        assertEquals(englishId, whisper.getLanguageId("english"));
+        assertEquals("en", whisper.getLanguageCode(englishId));
+        assertEquals("english", whisper.getLanguageName(englishId));
+        assertEquals(-1, whisper.getLanguageId("klingon"));
+        assertNull(whisper.getLanguageCode(whisper.getLanguageCount()));
+        float[] samples = readJFKFileSamples();
+        try (var ctx = whisper.initNoState(testModelPath); var state = whisper.initState(ctx)) {
+            float[] probs = whisper.detectLanguage(state, samples, 16000 * 5, 0);
+            assertEquals(whisper.getLanguageCount(), probs.length);
+            int best = 0;
+            for (int i = 1; i < probs.length; i++) {
+                if (probs[i] > probs[best]) {
+                    best = i;
+                }
+            }
+            assertEquals(englishId, best);
+            assertThrows(RuntimeException.class, () -> whisper.detectLanguage(state, samples, 16000, 60000));
+        }
+    }
+    @Test
     public void testNewState() throws IOException {
         try (var ctx = whisper.initNoState(testModelPath)) {
             assertNotNull(ctx);
@@ -72,6 +111,55 @@ public class WhisperJNITest {
         }
     }
     @Test
+    public void testSharedModel() throws Exception {
+        float[] samples = readJFKFileSamples();
+        var contextParams = new WhisperContextParams();
+        contextParams.shareModel = true;
+        contextParams.useMmap = true;
+        var ctx1 = whisper.initNoState(testModelPath, contextParams);
+        assertNotNull(ctx1);
+        try (var ctx2 = whisper.initNoState(testModelPath, contextParams)) {
+            assertNotNull(ctx2);
+            ctx1.close();
+            // the model is still loaded for the second context
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            try (var state = whisper.initState(ctx2)) {
+                int result = whisper.fullWithState(ctx2, state, params, samples, samples.length);
+                if(result != 0) {
+                    throw new RuntimeException("Transcription failed with code " + result);
+                }
+                assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", whisper.fullGetSegmentTextFromState(state, 0));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentStates() throws Exception {
+        try (var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            var executor = Executors.newFixedThreadPool(4);
+            try {
+                var tasks = new ArrayList<Future<?>>();
+                for (int i = 0; i < 4; i++) {
+                    tasks.add(executor.submit(() -> {
+                        for (int j = 0; j < 5; j++) {
+                            WhisperState state = whisper.initState(ctx);
+                            assertNotNull(state);
+                            assertEquals(0, whisper.fullNSegmentsFromState(state));
+                            state.close();
+                        }
+                        return null;
+                    }));
+                }
+                for (var task : tasks) {
+                    task.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+    @Test
     public void testSegmentIndexException() throws IOException {
         var ctx = whisper.init(testModelPath);
         Exception exception = assertThrows(IndexOutOfBoundsException.class, () -> {
@@ -153,6 +241,67 @@ public class WhisperJNITest {
         }
     }
 
+    @Test
+    public void testFullGetResult() throws Exception {
+        float[] samples = readJFKFileSamples();
+        try (var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            try (var state = whisper.initState(ctx)) {
+                assertNotNull(state);
+                int result = whisper.fullWithState(ctx, state, params, samples, samples.length);
+                if(result != 0) {
+                    throw new RuntimeException("Transcription failed with code " + result);
+                }
+                WhisperResult whisperResult = whisper.fullGetResultFromState(state);
+                assertEquals(1, whisperResult.getNSegments());
+                assertEquals(0, whisperResult.getSegmentTimestamp0(0));
+                assertEquals(1050, whisperResult.getSegmentTimestamp1(0));
+                assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", whisperResult.getSegmentText(0));
+                assertEquals(whisperResult.getSegmentText(0), whisperResult.getText());
+                assertThrows(IndexOutOfBoundsException.class, () -> whisperResult.getSegmentText(1));
+            }
+        }
+    }
+
+    @Test
+    public void testFullGetTokens() throws Exception {
+        float[] samples = readJFKFileSamples();
+        try (var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            params.tokenTimestamps = true;
+            try (var state = whisper.initState(ctx)) {
+                assertNotNull(state);
+                int result = whisper.fullWithState(ctx, state, params, samples, samples.length);
+                if(result != 0) {
+                    throw new RuntimeException("Transcription failed with code " + result);
+                }
+                WhisperTokens tokens = whisper.fullGetTokensFromState(state);
+                assertEquals(1, tokens.getNSegments());
+                assertTrue(tokens.getNTokens() > 0);
+                assertEquals(tokens.getNTokens(), tokens.getSegmentNTokens(0));
+                var text = new StringBuilder();
+                var segmentText = new StringBuilder();
+                int eot = whisper.tokenEot(ctx);
+                for (int i = 0; i < tokens.getNTokens(); i++) {
+                    float prob = tokens.getTokenProb(i);
+                    assertTrue(prob >= 0f && prob <= 1f);
+                    assertTrue(tokens.getTokenTimestamp0(i) <= tokens.getTokenTimestamp1(i));
+                    text.append(whisper.tokenToString(ctx, tokens.getTokenId(i)));
+                    if (tokens.getTokenId(i) < eot) {
+                        segmentText.append(whisper.tokenToString(ctx, tokens.getTokenId(i)));
+                    }
+                }
+                assertTrue(text.toString().contains(" And so my fellow Americans"));
+                // the special tokens are not part of the segment text
+                assertEquals(whisper.fullGetSegmentTextFromState(state, 0), segmentText.toString());
+                float noSpeechProb = tokens.getSegmentNoSpeechProb(0);
+                assertTrue(noSpeechProb >= 0f && noSpeechProb <= 1f);
+            }
+        }
+    }
+
     @Test
     public void testFullWithStateBeamSearch() throws Exception {
         float[] samples = readJFKFileSamples();
@@ -174,6 +323,91 @@ public class WhisperJNITest {
         }
     }
 
+    @Test
+    public void testFullWithStateDirectBuffer() throws Exception {
+        float[] samples = readJFKFileSamples();
+        FloatBuffer samplesBuffer = ByteBuffer.allocateDirect(samples.length * Float.BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        samplesBuffer.put(samples).flip();
+        try (var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            try (var state = whisper.initState(ctx)) {
+                assertNotNull(state);
+                int result = whisper.fullWithState(ctx, state, params, samplesBuffer, samplesBuffer.remaining());
+                if(result != 0) {
+                    throw new RuntimeException("Transcription failed with code " + result);
+                }
+                int numSegments = whisper.fullNSegmentsFromState(state);
+                assertEquals(1, numSegments);
+                String text = whisper.fullGetSegmentTextFromState(state,0);
+                assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", text);
+            }
+            assertThrows(IllegalArgumentException.class, () -> {
+                whisper.full(ctx, params, FloatBuffer.wrap(samples), samples.length);
+            });
+        }
+    }
+
+    @Test
+    public void testFullWithStatePCM() throws Exception {
+        short[] samples = readJFKFilePCM16Samples();
+        // interleave the samples into a little endian stereo buffer
+        ByteBuffer stereo = ByteBuffer.allocateDirect(samples.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (short sample : samples) {
+            stereo.putShort(sample);
+            stereo.putShort(sample);
+        }
+        stereo.flip();
+        try (var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            try (var state = whisper.initState(ctx)) {
+                assertNotNull(state);
+                int result = whisper.fullWithState(ctx, state, params, samples, samples.length);
+                if(result != 0) {
+                    throw new RuntimeException("Transcription failed with code " + result);
+                }
+                assertEquals(1, whisper.fullNSegmentsFromState(state));
+                assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", whisper.fullGetSegmentTextFromState(state, 0));
+                result = whisper.fullWithState(ctx, state, params, stereo, WhisperPCMFormat.PCM16, 2, samples.length);
+                if(result != 0) {
+                    throw new RuntimeException("Transcription failed with code " + result);
+                }
+                assertEquals(1, whisper.fullNSegmentsFromState(state));
+                assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", whisper.fullGetSegmentTextFromState(state, 0));
+                assertThrows(IndexOutOfBoundsException.class, () -> whisper.fullWithState(ctx, state, params, stereo, WhisperPCMFormat.PCM16, 2, samples.length + 1));
+            }
+        }
+    }
+
+    @Test
+    public void testFullCallbacks() throws Exception {
+        float[] samples = readJFKFileSamples();
+        try (var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            var segments = new ArrayList<WhisperSegment>();
+            var progress = new ArrayList<Integer>();
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            params.newSegmentCallback = (index, start, end, text) -> segments.add(new WhisperSegment(start, end, text));
+            params.progressCallback = progress::add;
+            params.encoderBeginCallback = () -> true;
+            try (var state = whisper.initState(ctx); var compiledParams = whisper.compileParams(params)) {
+                int result = whisper.fullWithState(ctx, state, compiledParams, samples, samples.length);
+                if(result != 0) {
+                    throw new RuntimeException("Transcription failed with code " + result);
+                }
+                assertEquals(1, segments.size());
+                assertEquals(whisper.fullGetSegmentTextFromState(state, 0), segments.get(0).getText());
+                assertEquals(1050, segments.get(0).getEnd());
+                assertFalse(progress.isEmpty());
+                params.encoderBeginCallback = () -> false;
+                assertTrue(whisper.fullWithState(ctx, state, params, samples, samples.length) != 0);
+            }
+        }
+    }
+
     @Test
     public void testFullWithGrammar() throws Exception {
         // Init trailing space is important
@@ -197,6 +431,378 @@ public class WhisperJNITest {
         }
     }
 
+    @Test
+    public void testGrammarCache() throws Exception {
+        String grammarText = "root ::= \" And so, my fellow American, ask not what your country can do for you, ask what you can do for your country.\"";
+        float[] samples = readJFKFileSamples();
+        byte[] serialized;
+        try (WhisperGrammar grammar = whisper.parseGrammar(grammarText);
+             WhisperGrammar cached = whisper.parseGrammar(grammarText)) {
+            assertNotNull(cached);
+            assertTrue(whisper.getGrammarCacheCount() >= 1);
+            assertTrue(whisper.getGrammarCacheSize() > 0);
+            serialized = whisper.serializeGrammar(grammar);
+        }
+        assertThrows(IOException.class, () -> whisper.loadGrammar(new byte[] { 1, 2, 3 }));
+        whisper.setGrammarCacheCapacity(0);
+        assertEquals(0, whisper.getGrammarCacheCount());
+        try (WhisperGrammar grammar = whisper.loadGrammar(serialized); var ctx = whisper.init(testModelPath)) {
+            assertNotNull(grammar);
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            params.grammar = grammar;
+            int result = whisper.full(ctx, params, samples, samples.length);
+            if (result != 0) {
+                throw new RuntimeException("Transcription failed with code " + result);
+            }
+            assertEquals(" And so, my fellow American, ask not what your country can do for you, ask what you can do for your country.", whisper.fullGetSegmentText(ctx, 0));
+        } finally {
+            whisper.setGrammarCacheCapacity(32 * 1024 * 1024);
+        }
+    }
+
+    @Test
+    public void testFullWithCompiledParams() throws Exception {
+        String grammarText = "root ::= \" And so, my fellow American, ask not what your country can do for you, ask what you can do for your country.\"";
+        float[] samples = readJFKFileSamples();
+        var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+        WhisperCompiledParams compiledParams;
+        try (WhisperGrammar grammar = whisper.parseGrammar(grammarText)) {
+            params.grammar = grammar;
+            compiledParams = whisper.compileParams(params);
+        }
+        try (compiledParams; var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            try (var state = whisper.initState(ctx)) {
+                for (int i = 0; i < 2; i++) {
+                    int result = whisper.fullWithState(ctx, state, compiledParams, samples, samples.length);
+                    if (result != 0) {
+                        throw new RuntimeException("Transcription failed with code " + result);
+                    }
+                    assertEquals(1, whisper.fullNSegmentsFromState(state));
+                    String text = whisper.fullGetSegmentTextFromState(state, 0);
+                    assertEquals(" And so, my fellow American, ask not what your country can do for you, ask what you can do for your country.", text);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFullTimings() throws Exception {
+        float[] samples = readJFKFileSamples();
+        try (var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            try (var state = whisper.initState(ctx)) {
+                var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+                assertEquals(0, whisper.fullWithState(ctx, state, params, samples, samples.length));
+                var timings = whisper.fullGetTimingsFromState(state);
+                assertEquals(1, timings.getNWindows());
+                assertTrue(timings.getNSampled() > 0);
+                assertTrue(timings.getMelUs() > 0);
+                assertTrue(timings.getEncodeUs() > 0);
+                assertTrue(timings.getDecodeUs() > 0);
+                assertTrue(timings.getMelUs() + timings.getEncodeUs() + timings.getDecodeUs() <= timings.getTotalUs());
+            }
+        }
+    }
+
+    @Test
+    public void testFullFromMel() throws Exception {
+        float[] samples = readJFKFileSamples();
+        try (var ctx = whisper.initNoState(testModelPath); var state = whisper.initState(ctx)) {
+            assertEquals(0, whisper.pcmToMel(state, samples, samples.length));
+            assertEquals(0, whisper.encode(state, 0));
+            assertTrue(whisper.setMel(state, new float[10 * 7], 10, 7) != 0);
+            assertEquals(0, whisper.pcmToMel(state, samples, samples.length));
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            assertEquals(0, whisper.fullFromMel(ctx, state, params));
+            assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", whisper.fullGetSegmentTextFromState(state, 0));
+            // the spectrogram is kept for the next pass
+            try (var compiledParams = whisper.compileParams(params)) {
+                assertEquals(0, whisper.fullFromMel(ctx, state, compiledParams));
+                assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", whisper.fullGetSegmentTextFromState(state, 0));
+            }
+        }
+    }
+
+    @Test
+    public void testEngine() throws Exception {
+        float[] samples = readJFKFileSamples();
+        var engineParams = new WhisperEngineParams();
+        engineParams.nStates = 2;
+        engineParams.queueSize = 2;
+        try (var engine = whisper.initEngine(testModelPath, engineParams)) {
+            assertEquals(2, engine.getNStates());
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            var results = new ArrayList<CompletableFuture<WhisperResult>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(engine.transcribe(params, samples, samples.length));
+            }
+            for (var result : results) {
+                WhisperResult whisperResult = result.get();
+                assertEquals(1, whisperResult.getNSegments());
+                assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", whisperResult.getSegmentText(0));
+            }
+            // the previous spectrogram of the state is not transcribed again
+            assertEquals(0, engine.transcribe(params, samples, 0).get().getNSegments());
+            var failed = engine.submit((ctx, state) -> {
+                throw new IOException("job failure");
+            });
+            assertThrows(ExecutionException.class, failed::get);
+            assertEquals(4, engine.getStats().getTotal().getCount());
+            assertEquals(5, engine.getStats().getQueue().getCount());
+            assertEquals(4, engine.getStats(0).getEncode().getCount());
+        }
+    }
+
+    @Test
+    public void testEngineDeadline() throws Exception {
+        float[] samples = readJFKFileSamples();
+        var engineParams = new WhisperEngineParams();
+        try (var engine = whisper.initEngine(testModelPath, engineParams)) {
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            var expired = engine.transcribe(params, samples, samples.length, 0, Duration.ofMillis(1));
+            var error = assertThrows(ExecutionException.class, expired::get);
+            assertTrue(error.getCause() instanceof TimeoutException);
+            // the aborted state is reusable
+            var result = engine.transcribe(params, samples, samples.length, 1, null).get();
+            assertEquals(1, result.getNSegments());
+        }
+    }
+
+    @Test
+    public void testEngineDiscardsExpiredJobs() throws Exception {
+        var engineParams = new WhisperEngineParams();
+        engineParams.nStates = 1;
+        engineParams.queueSize = 1;
+        try (var engine = whisper.initEngine(testModelPath, engineParams)) {
+            var release = new CountDownLatch(1);
+            var running = engine.submit((ctx, state) -> {
+                release.await();
+                return true;
+            });
+            var expired = engine.submit((ctx, state) -> true, 0, Duration.ofMillis(1));
+            var error = assertThrows(ExecutionException.class, expired::get);
+            assertTrue(error.getCause() instanceof TimeoutException);
+            // the expired job left the queue, so there is room while the first job is still running
+            var submitter = Executors.newSingleThreadExecutor();
+            try {
+                var queued = submitter.submit(() -> engine.submit((ctx, state) -> true)).get(5, TimeUnit.SECONDS);
+                release.countDown();
+                assertTrue(running.get());
+                assertTrue(queued.get());
+            } finally {
+                release.countDown();
+                submitter.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testEngineTranscribeLong() throws Exception {
+        float[] speech = readJFKFileSamples();
+        int gap = 16000;
+        float[] samples = new float[(speech.length + gap) * 4];
+        for (int i = 0; i < 4; i++) {
+            System.arraycopy(speech, 0, samples, i * (speech.length + gap), speech.length);
+        }
+        int[] bounds = WhisperVAD.splitAtSilence(samples, samples.length, 16000 * 15, 16000 * 5);
+        assertEquals(5, bounds.length);
+        for (int i = 1; i < 4; i++) {
+            // each split lands in the silence after a copy of the speech
+            int silenceStart = i * (speech.length + gap) - gap;
+            assertTrue(bounds[i] >= silenceStart && bounds[i] <= silenceStart + gap, "split " + bounds[i]);
+        }
+        var engineParams = new WhisperEngineParams();
+        engineParams.nStates = 2;
+        engineParams.longChunkMs = 15000;
+        try (var engine = whisper.initEngine(testModelPath, engineParams)) {
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            WhisperResult result = engine.transcribeLong(params, samples, samples.length).get();
+            assertEquals(4, result.getNSegments());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", result.getSegmentText(i));
+                assertTrue(result.getSegmentTimestamp0(i) >= (long) i * (speech.length + gap) / 160);
+            }
+            // the states hold the spectrogram of the previous chunks, it should not be transcribed again
+            assertEquals(0, engine.transcribeLong(params, new float[0], 0).get().getNSegments());
+        }
+    }
+
+    @Test
+    public void testEngineTranscribeBatch() throws Exception {
+        float[] speech = readJFKFileSamples();
+        var clips = List.of(speech, new float[16000], speech, speech);
+        // two copies of the speech plus the gaps fit in a 28 seconds window
+        assertEquals(2, new WhisperBatch(null).pack(clips).size());
+        var engineParams = new WhisperEngineParams();
+        engineParams.nStates = 2;
+        try (var engine = whisper.initEngine(testModelPath, engineParams)) {
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            List<WhisperResult> results = engine.transcribeBatch(params, clips).get();
+            assertEquals(4, results.size());
+            assertEquals(0, results.get(1).getNSegments());
+            for (int i : new int[]{0, 2, 3}) {
+                WhisperResult result = results.get(i);
+                assertEquals(1, result.getNSegments());
+                assertEquals(" And so my fellow Americans ask not what your country can do for you, ask what you can do for your country.", result.getSegmentText(0));
+                assertTrue(result.getSegmentTimestamp1(0) <= speech.length / 160);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchSplitsSegmentsAtTokens() {
+        // two clips of one second, the second starts at two seconds after the default gap
+        var clips = List.of(new float[16000], new float[16000]);
+        var pack = new WhisperBatch(null).pack(clips).get(0);
+        var result = WhisperResult.of(List.of(
+                new WhisperSegment(0, 300, " hello world"),
+                new WhisperSegment(110, 190, " gap")));
+        // the special tokens (ids 100 and greater) wrap the text tokens
+        var tokens = new WhisperTokens(new int[]{0, 4, 7}, new float[]{0f, 0f},
+                new int[]{100, 1, 2, 101, 100, 3, 101}, new float[7], new float[7],
+                new long[]{0, 0, 10, 60, 210, 280, 300, 300, 110, 110, 110, 190, 190, 190});
+        String[] texts = {null, " hello", " world", " gap"};
+        List<WhisperResult> results = pack.split(result, tokens, 100, token -> texts[token].getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, results.size());
+        assertEquals(1, results.get(0).getNSegments());
+        assertEquals(" hello", results.get(0).getSegmentText(0));
+        assertEquals(10, results.get(0).getSegmentTimestamp0(0));
+        assertEquals(60, results.get(0).getSegmentTimestamp1(0));
+        assertEquals(1, results.get(1).getNSegments());
+        assertEquals(" world", results.get(1).getSegmentText(0));
+        assertEquals(10, results.get(1).getSegmentTimestamp0(0));
+        assertEquals(80, results.get(1).getSegmentTimestamp1(0));
+    }
+
+    @Test
+    public void testEngineThreads() throws Exception {
+        float[] samples = readJFKFileSamples();
+        var engineParams = new WhisperEngineParams();
+        engineParams.nThreads = 3;
+        try (var engine = whisper.initEngine(testModelPath, engineParams)) {
+            assertEquals(3, engine.getNThreads());
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            var result = engine.submit((ctx, state) -> {
+                assertEquals(1, engine.getRunningJobs());
+                assertEquals(3, engine.getThreadsPerJob());
+                assertEquals(0, whisper.fullWithState(ctx, state, params, samples, samples.length));
+                return whisper.fullGetResultFromState(state);
+            }).get();
+            assertEquals(1, result.getNSegments());
+            assertEquals(0, engine.getRunningJobs());
+        }
+    }
+
+    @Test
+    public void testEnginePinStates() throws Exception {
+        assumeTrue(whisper.getCPUAffinity().length > 0, "Cpu affinity not supported");
+        float[] samples = readJFKFileSamples();
+        var engineParams = new WhisperEngineParams();
+        engineParams.nStates = 2;
+        engineParams.pinStates = true;
+        try (var engine = whisper.initEngine(testModelPath, engineParams)) {
+            assertTrue(engine.getStateAffinity(0).length > 0);
+            assertTrue(engine.getStateAffinity(1).length > 0);
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            var result = engine.transcribe(params, samples, samples.length).get();
+            assertEquals(1, result.getNSegments());
+            var stateCpus = List.of(Arrays.stream(engine.getStateAffinity(0)).boxed().collect(Collectors.toSet()),
+                    Arrays.stream(engine.getStateAffinity(1)).boxed().collect(Collectors.toSet()));
+            var jobs = new ArrayList<CompletableFuture<int[]>>();
+            for (int i = 0; i < 6; i++) {
+                jobs.add(engine.submit((ctx, state) -> {
+                    assertEquals(0, whisper.fullWithState(ctx, state, params, samples, samples.length));
+                    // read from the compute threads, which are reused by the next jobs of the engine thread
+                    return whisper.getComputeCPUAffinity(state, 4);
+                }));
+            }
+            for (var job : jobs) {
+                var computeCpus = Arrays.stream(job.get()).boxed().collect(Collectors.toSet());
+                assertTrue(stateCpus.stream().anyMatch(cpus -> cpus.containsAll(computeCpus)), "compute cpus " + computeCpus);
+            }
+            // the compute threads of a used state would keep their affinity
+            var used = engine.submit((ctx, state) -> assertThrows(IllegalStateException.class, () -> whisper.setCPUAffinity(state, whisper.getCPUAffinity())));
+            assertNotNull(used.get());
+        }
+    }
+
+    @Test
+    public void testStreamSession() throws Exception {
+        float[] samples = readJFKFileSamples();
+        try (var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            try (var state = whisper.initState(ctx)) {
+                var segments = new ArrayList<WhisperSegment>();
+                var streamParams = new WhisperStreamParams();
+                streamParams.stepMs = 1000;
+                var session = whisper.initStreamSession(ctx, state, streamParams, segments::add);
+                int chunkSize = 3200;
+                for (int i = 0; i < samples.length; i += chunkSize) {
+                    session.push(samples, i, Math.min(chunkSize, samples.length - i));
+                }
+                session.flush();
+                assertFalse(segments.isEmpty());
+                var text = new StringBuilder();
+                long lastEnd = 0;
+                for (var segment : segments) {
+                    assertTrue(segment.getStart() >= lastEnd);
+                    lastEnd = segment.getEnd();
+                    text.append(segment.getText());
+                }
+                assertTrue(text.toString().toLowerCase().contains("ask not what your country can do for you"));
+                assertTrue(lastEnd <= samples.length / 160 + 1);
+            }
+        }
+    }
+
+    @Test
+    public void testFullWithVAD() throws Exception {
+        float[] speech = readJFKFileSamples();
+        // surround the sample with 5 seconds of silence
+        float[] samples = new float[speech.length + 160000];
+        System.arraycopy(speech, 0, samples, 80000, speech.length);
+        try (var ctx = whisper.initNoState(testModelPath)) {
+            assertNotNull(ctx);
+            var params = new WhisperFullParams(WhisperSamplingStrategy.GREEDY);
+            var vad = new WhisperVAD(new WhisperVADParams());
+            try (var state = whisper.initState(ctx)) {
+                WhisperResult result = vad.fullWithState(whisper, ctx, state, params, samples, samples.length);
+                assertTrue(vad.getNRegions() > 0);
+                assertTrue(vad.getRegionStart(0) >= 70000);
+                assertTrue(vad.getRegionEnd(vad.getNRegions() - 1) <= samples.length - 70000);
+                assertTrue(result.getNSegments() > 0);
+                assertTrue(result.getSegmentTimestamp0(0) >= 400);
+                assertTrue(result.getText().toLowerCase().contains("ask not what your country can do for you"));
+                float[] silence = new float[32000];
+                assertEquals(0, vad.fullWithState(whisper, ctx, state, params, silence, silence.length).getNSegments());
+            }
+        }
+    }
+
+    @Test
+    public void testLibraryLogger() throws Exception {
+        var lines = new LinkedBlockingQueue<WhisperLogLevel>();
+        WhisperJNI.setLibraryLogger(new WhisperJNI.LibraryLogger() {
+            @Override
+            public void log(String text) {
+            }
+
+            @Override
+            public void log(WhisperLogLevel level, String text) {
+                lines.add(level);
+            }
+        }, WhisperLogLevel.INFO);
+        try {
+            whisper.initNoState(testModelPath).close();
+            var level = lines.poll(5, TimeUnit.SECONDS);
+            assertNotNull(level);
+            assertTrue(level.compareTo(WhisperLogLevel.INFO) >= 0);
+        } finally {
+            WhisperJNI.setLibraryLogger(null);
+        }
+    }
+
     @Test
     public void printSystemInfo() throws Exception {
         String whisperCPPSystemInfo = whisper.getSystemInfo();
@@ -217,6 +823,29 @@ public class WhisperJNITest {
         assertValidGrammar(sampleColorsGrammar);
         assertValidGrammar(sampleChessGrammar);
     }
+    @Test
+    public void validateGrammarErrors() throws ParseException {
+        assertValidGrammar("root ::= list \".\"\nlist ::= item | item \", \" list\nitem ::= [a-z]+\n");
+        assertEquals(9, assertThrows(ParseException.class, () -> assertValidGrammar("root ::= missing")).getErrorOffset());
+        assertEquals(9, assertThrows(ParseException.class, () -> assertValidGrammar("root ::= \"unclosed")).getErrorOffset());
+        // left recursion
+        assertEquals(17, assertThrows(ParseException.class, () -> assertValidGrammar("root ::= a\na ::= a \"x\" | \"y\"")).getErrorOffset());
+        // no termination
+        assertThrows(ParseException.class, () -> assertValidGrammar("root ::= a\na ::= \"x\" a"));
+    }
+    private short[] readJFKFilePCM16Samples() throws UnsupportedAudioFileException, IOException {
+        // sample is a 16 bit int 16000hz little endian wav file
+        AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(samplePath.toFile());
+        ByteBuffer captureBuffer = ByteBuffer.allocate(audioInputStream.available());
+        captureBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        int read = audioInputStream.read(captureBuffer.array());
+        if (read == -1) {
+            throw new IOException("Empty file");
+        }
+        short[] samples = new short[captureBuffer.capacity() / 2];
+        captureBuffer.asShortBuffer().get(samples);
+        return samples;
+    }
     private float[] readJFKFileSamples() throws UnsupportedAudioFileException, IOException {
         // sample is a 16 bit int 16000hz little endian wav file
         AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(samplePath.toFile());